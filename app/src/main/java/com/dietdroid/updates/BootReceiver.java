@@ -15,10 +15,10 @@ public class BootReceiver extends BroadcastReceiver {
             Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction()) ||
             Intent.ACTION_PACKAGE_REPLACED.equals(intent.getAction())) {
             
-            Log.d(TAG, "Boot completed or app updated, starting UpdateService");
+            Log.d(TAG, "Boot completed or app updated, scheduling update checks");
             
-            Intent serviceIntent = new Intent(context, UpdateService.class);
-            context.startService(serviceIntent);
+            // Persisted jobs normally survive both; this covers a cleared or never-scheduled one
+            UpdateService.schedule(context);
         }
     }
 }
\ No newline at end of file
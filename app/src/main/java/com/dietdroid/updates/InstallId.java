@@ -0,0 +1,31 @@
+package com.dietdroid.updates;
+
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * A random ID made on first use and kept until the app's data is cleared.
+ * It places the device in staged rollouts and says nothing about who owns it.
+ */
+final class InstallId {
+    private static final String KEY = "install_id";
+
+    private InstallId() {
+    }
+
+    static synchronized String get(SharedPreferences prefs) {
+        String id = prefs.getString(KEY, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            // commit() so a crash cannot hand the next launch a different bucket
+            prefs.edit().putString(KEY, id).commit();
+        }
+        return id;
+    }
+
+    /** Staged rollouts as they apply to this device right now. */
+    static Rollout rollout(SharedPreferences prefs) {
+        return new Rollout(get(prefs), System.currentTimeMillis());
+    }
+}
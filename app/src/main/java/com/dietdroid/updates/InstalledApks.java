@@ -0,0 +1,30 @@
+package com.dietdroid.updates;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/** Finds installed APKs through {@link PackageManager}. */
+public class InstalledApks implements InstalledApk.Locator {
+    private final PackageManager packageManager;
+
+    public InstalledApks(Context context) {
+        this.packageManager = context.getApplicationContext().getPackageManager();
+    }
+
+    @Override
+    public InstalledApk find(String packageName) {
+        try {
+            PackageInfo info = packageManager.getPackageInfo(packageName, 0);
+            if (info.applicationInfo == null || info.applicationInfo.sourceDir == null) {
+                return null;
+            }
+            File file = new File(info.applicationInfo.sourceDir);
+            return file.canRead() ? new InstalledApk(info.versionName, file) : null;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+}
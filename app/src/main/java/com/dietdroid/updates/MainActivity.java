@@ -2,7 +2,6 @@ package com.dietdroid.updates;
 
 import androidx.appcompat.app.AppCompatActivity;
 import android.os.Bundle;
-import android.os.AsyncTask;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.ProgressBar;
@@ -10,25 +9,23 @@ import android.widget.ImageView;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Build;
-import androidx.core.content.FileProvider;
+import androidx.core.content.ContextCompat;
+import android.content.pm.PackageManager;
 import android.os.Handler;
 import android.os.Looper;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
-import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -41,6 +38,14 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "SystemUpdate";
     private static final String VERSION_URL = "https://api.github.com/repos/alltechdev/alltech.dev/contents/system_update.json";
     private static final String DEVICE_PING_URL = "https://httpbin.org/post"; // Test HTTP endpoint for device registration
+    private static final long PM_INSTALL_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long SCRIPT_TIMEOUT_MS = 30 * 60 * 1000;
+    // Room for a few full APKs so retries and rollbacks need no download
+    private static final long ARTIFACT_CACHE_BYTES = 512L * 1024 * 1024;
+    // Parallel range requests per large artifact; "download_connections" = 1 turns them off
+    private static final int DOWNLOAD_CONNECTIONS = 4;
+    // Last resolved plan, shown at launch before the manifest is revalidated
+    private static final String PLAN_FILE = "update_plan.json";
     
     private TextView statusText;
     private Button checkButton;
@@ -49,10 +54,18 @@ public class MainActivity extends AppCompatActivity {
     private SharedPreferences prefs;
     
     private String currentVersion;
-    private String latestVersion;
-    private String scriptUrl;
-    private String apkUrl;
+    // Sequential updates from currentVersion up to the latest, in install order
+    private List<UpdateEntry> pendingUpdates = Collections.emptyList();
     private boolean isForced;
+    // The plan on screen, or null before the snapshot or a check has produced one
+    private UpdatePlan plan;
+    private UpdateExecutor executor;
+    private UpdateExecutor.Job<UpdatePlan> planJob;
+    private UpdateExecutor.Job<UpdatePlan> checkJob;
+    private UpdateExecutor.Job<Boolean> installJob;
+    // An install outlives the activity that started it; a recreated activity picks it up here
+    private static UpdateExecutor.Job<Boolean> runningInstall;
+    private static InstallUpdatesTask runningTask;
     // Removed automatic update checking variables
 
     @Override
@@ -61,12 +74,34 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         
         prefs = getSharedPreferences("system_update", MODE_PRIVATE);
+        executor = UpdateExecutor.get(ContextCompat.getMainExecutor(getApplicationContext()));
         currentVersion = prefs.getString("current_version", "1.0");
         
         initViews();
         setupClickListeners();
-        startUpdateService();
-        // Removed automatic update checking - all updates now require manual user action
+        UpdateService.schedule(this);
+        if (MetricsExport.ACTION_EXPORT_METRICS.equals(getIntent().getAction())) {
+            exportMetrics(false);
+        }
+        // Installing still requires manual user action; this only shows what is available
+        if (!reattachInstall()) {
+            showCachedPlan();
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A check is cheap to repeat; an install in progress is left to finish on its own
+        if (planJob != null) {
+            planJob.cancel();
+        }
+        if (checkJob != null) {
+            checkJob.cancel();
+        }
+        if (installJob != null) {
+            installJob.detach();
+        }
     }
     
     @Override
@@ -97,38 +132,110 @@ public class MainActivity extends AppCompatActivity {
     private void setupClickListeners() {
         checkButton.setOnClickListener(v -> checkForUpdate());
         updateButton.setOnClickListener(v -> performUpdate());
+        // Hidden on purpose: metrics are for whoever is chasing a slow device
+        checkButton.setOnLongClickListener(v -> {
+            exportMetrics(true);
+            return true;
+        });
+    }
+    
+    private void exportMetrics(boolean share) {
+        Context appContext = getApplicationContext();
+        String version = currentVersion;
+        executor.submit(UpdateExecutor.Pool.NETWORK, UpdateExecutor.Priority.LOW,
+                (token, progress) -> MetricsExport.export(appContext, version),
+                new UpdateExecutor.Callback<File>() {
+                    @Override
+                    public void onProgress(ProgressSnapshot snapshot) {
+                    }
+                    
+                    @Override
+                    public void onResult(File dump) {
+                        Log.d(TAG, "Metrics exported to " + dump.getParent());
+                        if (share) {
+                            startActivity(MetricsExport.shareIntent(MainActivity.this, dump));
+                        } else {
+                            Toast.makeText(MainActivity.this, "Metrics written to " + dump.getParent(),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    }
+                    
+                    @Override
+                    public void onError(Exception error) {
+                        Log.e(TAG, "Metrics export failed", error);
+                        Toast.makeText(MainActivity.this, "Metrics export failed", Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
     
     private void checkForUpdate() {
-        new CheckVersionTask().execute(VERSION_URL);
+        startCheck(false);
     }
     
-    private void startUpdateService() {
-        Intent serviceIntent = new Intent(this, UpdateService.class);
-        startService(serviceIntent);
-        Log.d(TAG, "UpdateService started from MainActivity");
+    /** @param quiet revalidating what is on screen: no spinner, and a failure leaves it as it is */
+    private void startCheck(boolean quiet) {
+        if (checkJob != null) {
+            checkJob.cancel();
+        }
+        if (!quiet) {
+            progressBar.setVisibility(View.VISIBLE);
+            checkButton.setEnabled(false);
+            statusText.setText("Checking for updates...");
+        }
+        OkHttpClient client = UpdateHttpClient.get(this);
+        File cacheDir = new File(getFilesDir(), "manifest");
+        File planFile = new File(getFilesDir(), PLAN_FILE);
+        UpdateMetrics metrics = UpdateMetrics.get(getFilesDir());
+        String version = currentVersion;
+        SharedPreferences appPrefs = prefs;
+        checkJob = executor.submit(UpdateExecutor.Pool.NETWORK,
+                quiet ? UpdateExecutor.Priority.NORMAL : UpdateExecutor.Priority.HIGH,
+                (token, progress) -> fetchPlan(client, cacheDir, VERSION_URL, version, InstallId.rollout(appPrefs),
+                        planFile, metrics, token),
+                new CheckCallback(quiet));
     }
     
-    private void checkRootAccess() {
-        new Thread(() -> {
-            try {
-                Process process = Runtime.getRuntime().exec("su -c echo test");
-                int exitCode = process.waitFor();
-                
-                runOnUiThread(() -> {
-                    if (exitCode == 0) {
-                        Log.d(TAG, "Root access granted");
-                        grantPermissions();
-                    } else {
-                        Log.d(TAG, "Root access not available, continuing without root privileges");
+    /** Shows the last resolved plan without waiting for the network, then revalidates it. */
+    private void showCachedPlan() {
+        File planFile = new File(getFilesDir(), PLAN_FILE);
+        String version = currentVersion;
+        planJob = executor.submit(UpdateExecutor.Pool.NETWORK, UpdateExecutor.Priority.HIGH,
+                (token, progress) -> readPlan(planFile, version),
+                new UpdateExecutor.Callback<UpdatePlan>() {
+                    @Override
+                    public void onProgress(ProgressSnapshot snapshot) {
+                    }
+                    
+                    @Override
+                    public void onResult(UpdatePlan cached) {
+                        // A check the user started may already have answered
+                        if (cached != null && plan == null) {
+                            showPlan(cached);
+                        }
+                        if (checkJob == null) {
+                            startCheck(true);
+                        }
+                    }
+                    
+                    @Override
+                    public void onError(Exception error) {
+                        onResult(null);
                     }
                 });
-            } catch (Exception e) {
-                runOnUiThread(() -> {
-                    Log.d(TAG, "Root not available, continuing without root privileges");
-                });
-                Log.e(TAG, "Root check failed", e);
-            }
+    }
+    
+    private void checkRootAccess() {
+        new Thread(() -> {
+            // Opens the shared root shell; later root commands reuse it
+            boolean rooted = RootShell.get().isRootAvailable();
+            runOnUiThread(() -> {
+                if (rooted) {
+                    Log.d(TAG, "Root access granted");
+                    grantPermissions();
+                } else {
+                    Log.d(TAG, "Root access not available, continuing without root privileges");
+                }
+            });
         }).start();
     }
     
@@ -138,15 +245,16 @@ public class MainActivity extends AppCompatActivity {
             try {
                 String packageName = getPackageName();
                 
-                // Grant WRITE_EXTERNAL_STORAGE permission
-                ProcessBuilder pb1 = new ProcessBuilder("su", "-c", "pm grant " + packageName + " android.permission.WRITE_EXTERNAL_STORAGE");
-                Process p1 = pb1.start();
-                p1.waitFor();
-                
-                // Grant INSTALL_PACKAGES permission
-                ProcessBuilder pb2 = new ProcessBuilder("su", "-c", "pm grant " + packageName + " android.permission.INSTALL_PACKAGES");
-                Process p2 = pb2.start();
-                p2.waitFor();
+                // Both grants in one round trip to the root shell
+                List<RootShell.Result> results = RootShell.get().runBatch(Arrays.asList(
+                        "pm grant " + packageName + " android.permission.WRITE_EXTERNAL_STORAGE",
+                        "pm grant " + packageName + " android.permission.INSTALL_PACKAGES"),
+                        RootShell.DEFAULT_TIMEOUT_MS);
+                for (RootShell.Result result : results) {
+                    if (!result.isSuccess()) {
+                        Log.w(TAG, "pm grant failed: " + result.stderr.trim());
+                    }
+                }
                 
                 Log.d(TAG, "Permissions granted via root");
             } catch (Exception e) {
@@ -155,226 +263,288 @@ public class MainActivity extends AppCompatActivity {
         }).start();
     }
     
+    /** Shows an install an earlier instance of this activity started; true if it is still running. */
+    private boolean reattachInstall() {
+        if (runningInstall == null || runningInstall.isFinished()) {
+            runningInstall = null;
+            runningTask = null;
+            return false;
+        }
+        installJob = runningInstall;
+        progressBar.setVisibility(View.VISIBLE);
+        updateButton.setVisibility(View.VISIBLE);
+        updateButton.setEnabled(false);
+        statusText.setText("Installing updates...");
+        installJob.attach(new InstallCallback(runningTask));
+        return true;
+    }
+    
     private void performUpdate() {
+        if (installJob != null && !installJob.isFinished()) {
+            return; // Already installing; a second run would repeat every step
+        }
         if (isForced) {
             Toast.makeText(this, "Installing critical security update...", Toast.LENGTH_LONG).show();
         }
         
-        if (apkUrl != null && scriptUrl != null) {
-            new DownloadAndExecuteTask().execute(scriptUrl, apkUrl);
-        } else if (apkUrl != null) {
-            new DownloadApkTask().execute(apkUrl);
-        } else if (scriptUrl != null) {
-            new DownloadAndExecuteTask().execute(scriptUrl);
+        if (!pendingUpdates.isEmpty()) {
+            progressBar.setVisibility(View.VISIBLE);
+            updateButton.setEnabled(false);
+            statusText.setText("Downloading update...");
+            InstallUpdatesTask task = new InstallUpdatesTask(getApplicationContext(), prefs, pendingUpdates,
+                    executor.networkExecutor());
+            installJob = executor.submit(UpdateExecutor.Pool.PROCESS, UpdateExecutor.Priority.NORMAL,
+                    task, new InstallCallback(task));
+            runningInstall = installJob;
+            runningTask = task;
         }
     }
     
-    private class CheckVersionTask extends AsyncTask<String, Void, String> {
-        @Override
-        protected void onPreExecute() {
-            progressBar.setVisibility(View.VISIBLE);
-            checkButton.setEnabled(false);
-            statusText.setText("Checking for updates...");
+    /** Runs on the network pool; must not reference the activity. */
+    private static UpdatePlan fetchPlan(OkHttpClient client, File cacheDir, String url, String currentVersion,
+                                        Rollout rollout, File planFile, UpdateMetrics metrics,
+                                        CancellationToken token) throws IOException {
+        ManifestFetcher fetcher = new ManifestFetcher(client, cacheDir);
+        UpdatePlan plan;
+        try (UpdateMetrics.Span span = metrics.span("check")) {
+            ManifestFetcher.Result result = fetcher.fetch(url, token);
+            if (result.notModified) {
+                Log.d(TAG, "Manifest unchanged (" + result.etag + "), using cached copy");
+                metrics.increment("check.not_modified");
+            }
+            // Versions still held back from this device's rollout bucket are left out
+            plan = UpdatePlan.resolve(result.manifest, result.etag, currentVersion, rollout);
+            span.success();
+        } finally {
+            metrics.flush();
+        }
+        try {
+            plan.write(planFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store update plan", e);
+        }
+        return plan;
+    }
+    
+    /** Runs on the network pool; null if there is no usable plan for {@code currentVersion}. */
+    private static UpdatePlan readPlan(File planFile, String currentVersion) {
+        if (!planFile.isFile()) {
+            return null;
+        }
+        try {
+            UpdatePlan plan = UpdatePlan.read(planFile);
+            // Written before the last install; the next check replaces it
+            return plan.currentVersion.equals(currentVersion) ? plan : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable update plan", e);
+            return null;
+        }
+    }
+    
+    private class CheckCallback implements UpdateExecutor.Callback<UpdatePlan> {
+        private final boolean quiet;
+        
+        CheckCallback(boolean quiet) {
+            this.quiet = quiet;
         }
         
         @Override
-        protected String doInBackground(String... urls) {
-            try {
-                OkHttpClient client = new OkHttpClient();
-                Request request = new Request.Builder()
-                    .url(urls[0])
-                    .build();
-                
-                Response response = client.newCall(request).execute();
-                return response.body().string();
-            } catch (Exception e) {
-                Log.e(TAG, "Error checking version", e);
-                return null;
-            }
+        public void onProgress(ProgressSnapshot snapshot) {
         }
         
         @Override
-        protected void onPostExecute(String result) {
+        public void onError(Exception error) {
+            if (quiet) {
+                // Whatever is on screen stays; the user can still check by hand
+                Log.w(TAG, "Background update check failed", error);
+                return;
+            }
+            Log.e(TAG, "Error checking version", error);
             progressBar.setVisibility(View.GONE);
             checkButton.setEnabled(true);
+            statusText.setText("Failed to check for updates");
+        }
+        
+        @Override
+        public void onResult(UpdatePlan fresh) {
+            if (!quiet) {
+                progressBar.setVisibility(View.GONE);
+                checkButton.setEnabled(true);
+            } else if (installJob != null) {
+                // An install from the cached plan is underway or done; it decides what comes next
+                return;
+            } else if (fresh.looksSameAs(plan)) {
+                // Nothing visible changed, but the artifacts might have
+                adoptPlan(fresh);
+                return;
+            }
+            showPlan(fresh);
+        }
+    }
+    
+    private void adoptPlan(UpdatePlan plan) {
+        this.plan = plan;
+        // Every sequential version between the installed one and the latest
+        pendingUpdates = plan.updates;
+        isForced = plan.isForced();
+    }
+    
+    private void showPlan(UpdatePlan plan) {
+        adoptPlan(plan);
+        if (!pendingUpdates.isEmpty()) {
+            UpdateEntry target = plan.target();
             
-            if (result != null) {
-                try {
-                    Gson gson = new Gson();
-                    JsonObject apiResponse = gson.fromJson(result, JsonObject.class);
-                    String content = apiResponse.get("content").getAsString();
-                    String decodedContent = new String(android.util.Base64.decode(content, android.util.Base64.DEFAULT));
-                    
-                    JsonObject jsonObject = gson.fromJson(decodedContent, JsonObject.class);
-                    
-                    // Support both old and new JSON formats
-                    if (jsonObject.has("latest_version")) {
-                        // New format
-                        latestVersion = jsonObject.get("latest_version").getAsString();
-                        JsonObject updates = jsonObject.getAsJsonObject("updates");
-                        JsonObject updateInfo = updates.getAsJsonObject(latestVersion);
-                        scriptUrl = updateInfo.has("script_url") ? updateInfo.get("script_url").getAsString() : null;
-                        apkUrl = updateInfo.has("apk_url") ? updateInfo.get("apk_url").getAsString() : null;
-                        isForced = updateInfo.has("forced") ? updateInfo.get("forced").getAsBoolean() : false;
-                    } else {
-                        // Old format
-                        latestVersion = jsonObject.get("version").getAsString();
-                        scriptUrl = jsonObject.has("script_url") ? jsonObject.get("script_url").getAsString() : null;
-                        apkUrl = jsonObject.has("apk_url") ? jsonObject.get("apk_url").getAsString() : null;
-                        isForced = jsonObject.has("forced") ? jsonObject.get("forced").getAsBoolean() : false;
-                    }
-                    
-                    // Find the next sequential version the user should install
-                    String nextVersion = getNextSequentialVersion(jsonObject, currentVersion);
-                    
-                    if (nextVersion != null && !currentVersion.equals(nextVersion)) {
-                        // Get the update info for the next version
-                        JsonObject currentUpdateInfo = null;
-                        if (jsonObject.has("latest_version")) {
-                            // New format
-                            JsonObject updates = jsonObject.getAsJsonObject("updates");
-                            currentUpdateInfo = updates.getAsJsonObject(nextVersion);
-                            
-                            // Update the current URLs and forced status for the next version
-                            if (currentUpdateInfo != null) {
-                                scriptUrl = currentUpdateInfo.has("script_url") ? currentUpdateInfo.get("script_url").getAsString() : null;
-                                apkUrl = currentUpdateInfo.has("apk_url") ? currentUpdateInfo.get("apk_url").getAsString() : null;
-                                isForced = currentUpdateInfo.has("forced") ? currentUpdateInfo.get("forced").getAsBoolean() : false;
-                            }
-                        } else {
-                            // Old format - use the whole jsonObject as update info
-                            currentUpdateInfo = jsonObject;
-                        }
-                        
-                        // Display changelog if available
-                        displayChangelog(currentUpdateInfo);
-                        
-                        if (isForced) {
-                            statusText.setText("Critical update available: v" + nextVersion + " (Installation required)");
-                            updateButton.setVisibility(View.VISIBLE);
-                            updateButton.setText("Install Critical Update");
-                        } else {
-                            statusText.setText("Update available: v" + nextVersion);
-                            updateButton.setVisibility(View.VISIBLE);
-                            updateButton.setText("Install Update");
-                        }
-                    } else {
-                        statusText.setText("You have the latest version: v" + currentVersion);
-                        hideChangelog();
-                    }
-                } catch (Exception e) {
-                    statusText.setText("Error parsing version info");
-                    Log.e(TAG, "Error parsing JSON", e);
-                }
+            // Display changelog if available
+            displayChangelog(target);
+            
+            String available = "v" + target.version;
+            if (pendingUpdates.size() > 1) {
+                available += " (" + pendingUpdates.size() + " updates from v" + currentVersion + ")";
+            }
+            String action = pendingUpdates.size() > 1 ? "Install " + pendingUpdates.size() + " Updates" : "Install Update";
+            if (isForced) {
+                statusText.setText("Critical update available: " + available + " (Installation required)");
+                updateButton.setVisibility(View.VISIBLE);
+                updateButton.setText(pendingUpdates.size() > 1 ? action : "Install Critical Update");
             } else {
-                statusText.setText("Failed to check for updates");
+                statusText.setText("Update available: " + available);
+                updateButton.setVisibility(View.VISIBLE);
+                updateButton.setText(action);
             }
+        } else {
+            statusText.setText("You have the latest version: v" + currentVersion);
+            // A cached plan may have offered an update the manifest no longer has
+            updateButton.setVisibility(View.GONE);
+            hideChangelog();
         }
     }
     
-    private class DownloadAndExecuteTask extends AsyncTask<String, String, Boolean> {
-        @Override
-        protected void onPreExecute() {
-            progressBar.setVisibility(View.VISIBLE);
-            updateButton.setEnabled(false);
-            statusText.setText("Downloading update script...");
+    /**
+     * Downloads and installs a chain of updates. Holds only the application
+     * context, so an activity that goes away while it runs is not leaked.
+     */
+    private static class InstallUpdatesTask implements UpdateExecutor.Task<Boolean> {
+        private final Context context;
+        private final SharedPreferences prefs;
+        private final List<UpdateEntry> updates;
+        private final Executor downloadExecutor;
+        // Counts steps an earlier run had installed already, so it indexes updates
+        private volatile int installedCount;
+        private volatile InstallResult failure;
+        private final UpdateMetrics metrics;
+        
+        InstallUpdatesTask(Context context, SharedPreferences prefs, List<UpdateEntry> updates,
+                           Executor downloadExecutor) {
+            this.context = context;
+            this.prefs = prefs;
+            this.updates = updates;
+            this.downloadExecutor = downloadExecutor;
+            this.metrics = UpdateMetrics.get(context.getFilesDir());
         }
         
         @Override
-        protected Boolean doInBackground(String... urls) {
-            try {
-                OkHttpClient client = new OkHttpClient();
-                
-                if (urls.length > 1) {
-                    publishProgress("Downloading APK...");
-                    
-                    // Convert GitHub blob URLs to raw URLs for proper binary download
-                    String apkUrl = convertToRawUrl(urls[1]);
-                    Log.d(TAG, "APK URL: " + apkUrl);
-                    
-                    Request apkRequest = new Request.Builder().url(apkUrl).build();
-                    Response apkResponse = client.newCall(apkRequest).execute();
-                    
-                    // First save to app's internal storage
-                    File tempApkFile = new File(getFilesDir(), "update.apk");
-                    FileOutputStream apkFos = new FileOutputStream(tempApkFile);
-                    apkFos.write(apkResponse.body().bytes());
-                    apkFos.close();
-                    
-                    // Copy to /data/local/tmp using su
-                    String destPath = "/data/local/tmp/update.apk";
-                    ProcessBuilder copyPb = new ProcessBuilder("su", "-c", "cp " + tempApkFile.getAbsolutePath() + " " + destPath);
-                    Process copyProcess = copyPb.start();
-                    copyProcess.waitFor();
-                    
-                    // Set permissions using su
-                    ProcessBuilder chmodPb = new ProcessBuilder("su", "-c", "chmod 644 " + destPath);
-                    Process chmodProcess = chmodPb.start();
-                    chmodProcess.waitFor();
-                    
-                    File apkFile = new File(destPath);
-                    
-                    publishProgress("Installing APK...");
-                    boolean apkInstallSuccess = installApk(apkFile);
-                    if (!apkInstallSuccess) {
-                        return false;
-                    }
+        public Boolean run(CancellationToken token, UpdateExecutor.Progress progress) throws Exception {
+            // Frames at a fixed rate however chatty downloads and scripts are
+            ProgressChannel channel = new ProgressChannel(progress::publish,
+                    new File(context.getFilesDir(), "logs/update.log"));
+            // A cancel kills whatever pm or script the root shell is running
+            Runnable abortRoot = token.register(RootShell.get()::abort);
+            deleteLegacyDownloads(context, prefs);
+            ArtifactStore store = new ArtifactStore(new File(context.getFilesDir(), "artifacts"), ARTIFACT_CACHE_BYTES);
+            UpdateFetcher fetcher = new UpdateFetcher(UpdateHttpClient.artifacts(context),
+                    store, downloadExecutor, chooseApkStager(context), new InstalledApks(context),
+                    new MirrorHealth(new File(context.getFilesDir(), "mirrors.properties")));
+            fetcher.setMaxConnections(prefs.getInt("download_connections", DOWNLOAD_CONNECTIONS));
+            UpdateRunner runner = new UpdateRunner(fetcher, store, new UpdateRunner.Platform() {
+                @Override
+                public InstallResult installApk(File apkFile) throws Exception {
+                    return MainActivity.installApk(context, apkFile);
                 }
                 
-                if (urls[0] != null) {
-                    publishProgress("Downloading script...");
-                    
-                    Request request = new Request.Builder().url(urls[0]).build();
-                    Response response = client.newCall(request).execute();
-                    String scriptContent = response.body().string();
-                    
-                    File scriptFile = new File(getFilesDir(), "update_script.sh");
-                    FileOutputStream fos = new FileOutputStream(scriptFile);
-                    fos.write(scriptContent.getBytes());
-                    fos.close();
-                    
-                    scriptFile.setExecutable(true);
-                    
-                    publishProgress("Executing update script...");
-                    
-                    ProcessBuilder pb = new ProcessBuilder("su", "-c", "sh " + scriptFile.getAbsolutePath());
-                    Process process = pb.start();
-                    
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        Log.d(TAG, "Script output: " + line);
-                        publishProgress("Script: " + line);
+                @Override
+                public RootShell.Result runScript(File scriptFile, RootShell.LineListener output) throws Exception {
+                    return RootShell.get().run("sh " + RootShell.quote(scriptFile.getAbsolutePath()),
+                            output, SCRIPT_TIMEOUT_MS);
+                }
+            }, channel, metrics);
+            // A plan from before an earlier run may list steps that run installed already
+            List<UpdateEntry> steps = UpdateRunner.notInstalled(updates, prefs.getString("current_version", null));
+            int skipped = updates.size() - steps.size();
+            installedCount = skipped;
+            try {
+                if (steps.isEmpty()) {
+                    return true;
+                }
+                runner.run(steps, token, new UpdatePipeline.Listener() {
+                    @Override
+                    public void onStepStarted(UpdateEntry update, int index, int count) {
                     }
                     
-                    int exitCode = process.waitFor();
-                    return exitCode == 0;
-                }
-                
+                    @Override
+                    public void onStepInstalled(UpdateEntry update, int index, int count) {
+                        installedCount = skipped + index + 1;
+                        prefs.edit().putString("current_version", update.version).apply();
+                        Log.d(TAG, "Installed v" + update.version + " (" + (index + 1) + "/" + count + ")");
+                    }
+                });
                 return true;
-                
             } catch (Exception e) {
-                Log.e(TAG, "Error executing update", e);
+                Log.e(TAG, token.isCancelled() ? "Update cancelled" : "Error executing update", e);
+                if (e instanceof InstallResult.InstallException) {
+                    failure = ((InstallResult.InstallException) e).result;
+                }
                 return false;
+            } finally {
+                token.unregister(abortRoot);
+                store.trim();
+                channel.close();
+                metrics.flush();
             }
         }
+    }
+    
+    private class InstallCallback implements UpdateExecutor.Callback<Boolean> {
+        private final InstallUpdatesTask task;
+        
+        InstallCallback(InstallUpdatesTask task) {
+            this.task = task;
+        }
+        
+        @Override
+        public void onProgress(ProgressSnapshot snapshot) {
+            statusText.setText(formatProgress(snapshot));
+        }
         
         @Override
-        protected void onProgressUpdate(String... progress) {
-            statusText.setText(progress[0]);
+        public void onError(Exception error) {
+            Log.e(TAG, "Error executing update", error);
+            onResult(false);
         }
         
         @Override
-        protected void onPostExecute(Boolean success) {
+        public void onResult(Boolean success) {
+            if (runningTask == task) {
+                runningInstall = null;
+                runningTask = null;
+            }
             progressBar.setVisibility(View.GONE);
             updateButton.setEnabled(true);
+            currentVersion = prefs.getString("current_version", currentVersion);
+            int installedCount = task.installedCount;
+            pendingUpdates = task.updates.subList(installedCount, task.updates.size());
             
             if (success) {
                 statusText.setText("Update completed successfully!");
-                Toast.makeText(MainActivity.this, "System updated to v" + latestVersion, Toast.LENGTH_LONG).show();
-                currentVersion = latestVersion;
-                prefs.edit().putString("current_version", latestVersion).apply();
+                Toast.makeText(MainActivity.this, "System updated to v" + currentVersion, Toast.LENGTH_LONG).show();
                 updateButton.setVisibility(View.GONE);
+                hideChangelog();
+            } else if (installedCount > 0) {
+                statusText.setText("Updated to v" + currentVersion + ", then an update failed. Check logs for details.");
+                Toast.makeText(MainActivity.this, "Update failed", Toast.LENGTH_SHORT).show();
+                updateButton.setText("Resume Update");
+            } else if (task.failure != null) {
+                statusText.setText(describeFailure(task.failure) + " Check logs for details.");
+                Toast.makeText(MainActivity.this, "Update failed", Toast.LENGTH_SHORT).show();
             } else {
                 statusText.setText("Update failed. Check logs for details.");
                 Toast.makeText(MainActivity.this, "Update failed", Toast.LENGTH_SHORT).show();
@@ -382,169 +552,156 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private class DownloadApkTask extends AsyncTask<String, String, Boolean> {
-        @Override
-        protected void onPreExecute() {
-            progressBar.setVisibility(View.VISIBLE);
-            updateButton.setEnabled(false);
-            statusText.setText("Downloading APK...");
+    /**
+     * Streaming into a PackageInstaller session is used when it installs
+     * silently (INSTALL_PACKAGES held) or when there is no root to fall back
+     * on. Otherwise APKs are downloaded to a file and piped into pm over the
+     * root shell.
+     */
+    private static StagedApk.Stager chooseApkStager(Context context) {
+        boolean canInstallSilently = ContextCompat.checkSelfPermission(context,
+                android.Manifest.permission.INSTALL_PACKAGES) == PackageManager.PERMISSION_GRANTED;
+        if (canInstallSilently || !RootShell.get().isRootAvailable()) {
+            return new SessionInstaller(context);
         }
-        
-        @Override
-        protected Boolean doInBackground(String... urls) {
-            try {
-                publishProgress("Downloading APK...");
-                
-                // Convert GitHub blob URLs to raw URLs for proper binary download
-                String apkUrl = convertToRawUrl(urls[0]);
-                Log.d(TAG, "APK URL: " + apkUrl);
-                
-                OkHttpClient client = new OkHttpClient();
-                Request request = new Request.Builder().url(apkUrl).build();
-                Response response = client.newCall(request).execute();
-                
-                // First save to app's internal storage
-                File tempApkFile = new File(getFilesDir(), "update.apk");
-                FileOutputStream fos = new FileOutputStream(tempApkFile);
-                fos.write(response.body().bytes());
-                fos.close();
-                
-                // Copy to /data/local/tmp using su
-                String destPath = "/data/local/tmp/update.apk";
-                ProcessBuilder copyPb = new ProcessBuilder("su", "-c", "cp " + tempApkFile.getAbsolutePath() + " " + destPath);
-                Process copyProcess = copyPb.start();
-                copyProcess.waitFor();
-                
-                // Set permissions using su
-                ProcessBuilder chmodPb = new ProcessBuilder("su", "-c", "chmod 644 " + destPath);
-                Process chmodProcess = chmodPb.start();
-                chmodProcess.waitFor();
-                
-                File apkFile = new File(destPath);
-                
-                publishProgress("Installing APK...");
-                boolean installSuccess = installApk(apkFile);
-                
-                return installSuccess;
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error downloading APK", e);
-                return false;
+        return null;
+    }
+    
+    /**
+     * Installs an APK from disk: through pm over the root shell when root is
+     * available, otherwise through a PackageInstaller session.
+     */
+    private static InstallResult installApk(Context context, File apkFile) throws Exception {
+        UpdateMetrics metrics = UpdateMetrics.get(context.getFilesDir());
+        if (!RootShell.get().isRootAvailable()) {
+            try (UpdateMetrics.Span span = metrics.span("install.session")) {
+                new SessionInstaller(context).install(apkFile);
+                span.success();
+                return new InstallResult(InstallResult.Status.SUCCESS, null, null);
+            } catch (InstallResult.InstallException e) {
+                return e.result;
             }
         }
         
-        @Override
-        protected void onProgressUpdate(String... progress) {
-            statusText.setText(progress[0]);
+        RootShell shell = RootShell.get();
+        String command;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Root reads the file and pipes it into pm, so no copy to /data/local/tmp is needed
+            command = "cat " + RootShell.quote(apkFile.getAbsolutePath())
+                    + " | pm install -r -S " + apkFile.length();
+        } else {
+            // Older pm cannot read stdin; copy to /data/local/tmp where it can read the file
+            String destPath = "/data/local/tmp/update.apk";
+            List<RootShell.Result> prepare;
+            try (UpdateMetrics.Span span = metrics.span("install.copy")) {
+                prepare = shell.runBatch(Arrays.asList(
+                        "cp " + RootShell.quote(apkFile.getAbsolutePath()) + " " + destPath,
+                        "chmod 644 " + destPath),
+                        RootShell.DEFAULT_TIMEOUT_MS);
+                span.success();
+            }
+            for (RootShell.Result result : prepare) {
+                if (!result.isSuccess()) {
+                    // cp fails this way when /data is full
+                    InstallResult.Status status = result.stderr.contains("No space left")
+                            ? InstallResult.Status.INSUFFICIENT_STORAGE : InstallResult.Status.FAILED;
+                    return new InstallResult(status, null, "Preparing APK failed: " + result.stderr.trim());
+                }
+            }
+            // Removed right after pm has read it, successful or not
+            command = "pm install -r " + destPath + "; status=$?; rm -f " + destPath + "; exit $status";
         }
         
-        @Override
-        protected void onPostExecute(Boolean success) {
-            progressBar.setVisibility(View.GONE);
-            updateButton.setEnabled(true);
-            
-            if (success) {
-                statusText.setText("APK installed successfully!");
-                Toast.makeText(MainActivity.this, "APK updated to v" + latestVersion, Toast.LENGTH_LONG).show();
-                currentVersion = latestVersion;
-                prefs.edit().putString("current_version", latestVersion).apply();
-                updateButton.setVisibility(View.GONE);
-            } else {
-                statusText.setText("APK installation failed.");
-                Toast.makeText(MainActivity.this, "APK installation failed", Toast.LENGTH_SHORT).show();
-            }
+        RootShell.Result output;
+        try (UpdateMetrics.Span span = metrics.span("install.pm")) {
+            output = shell.run(command, PM_INSTALL_TIMEOUT_MS);
+            span.success();
         }
+        InstallResult result = InstallResult.parsePm(output.exitCode, output.stdout, output.stderr);
+        Log.d(TAG, "pm install exited with " + output.exitCode + ": " + result);
+        return result;
     }
     
-    private boolean installApk(File apkFile) {
-        try {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                String command = "pm install -r " + apkFile.getAbsolutePath();
-                ProcessBuilder pb = new ProcessBuilder("su", "-c", command);
-                Process process = pb.start();
-                
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                
-                String line;
-                StringBuilder output = new StringBuilder();
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                    Log.d(TAG, "PM install output: " + line);
-                }
-                
-                StringBuilder errorOutput = new StringBuilder();
-                while ((line = errorReader.readLine()) != null) {
-                    errorOutput.append(line).append("\n");
-                    Log.e(TAG, "PM install error: " + line);
-                }
-                
-                int exitCode = process.waitFor();
-                Log.d(TAG, "PM install exit code: " + exitCode);
-                
-                if (exitCode == 0 && output.toString().contains("Success")) {
-                    return true;
-                } else {
-                    Log.e(TAG, "APK installation failed. Exit code: " + exitCode);
-                    Log.e(TAG, "Error output: " + errorOutput.toString());
-                    return false;
+    private static String describeFailure(InstallResult result) {
+        switch (result.status) {
+            case INSUFFICIENT_STORAGE:
+                return "Not enough storage to install the update.";
+            case INCOMPATIBLE:
+                return "The update is signed differently from the installed app.";
+            case DOWNGRADE:
+                return "The update is older than the installed app.";
+            case INVALID_APK:
+                return "The update APK is not valid for this device.";
+            case ABORTED:
+                return "The install was cancelled.";
+            default:
+                return "Update failed.";
+        }
+    }
+    
+    /** Removes downloads saved under the fixed names used before the artifact store. */
+    private static void deleteLegacyDownloads(Context context, SharedPreferences prefs) {
+        File[] files = context.getFilesDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isFile() && (name.startsWith("update.apk") || name.startsWith("update_script")
+                        || name.startsWith("update-"))) {
+                    file.delete();
                 }
-            } else {
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                Uri apkUri;
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    apkUri = FileProvider.getUriForFile(this, getPackageName() + ".provider", apkFile);
-                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                } else {
-                    apkUri = Uri.fromFile(apkFile);
+            }
+        }
+        if (!prefs.getBoolean("legacy_tmp_cleaned", false) && RootShell.get().isRootAvailable()) {
+            try {
+                // Older versions left their pm copy behind in /data/local/tmp
+                if (RootShell.get().run("rm -f /data/local/tmp/update.apk", RootShell.DEFAULT_TIMEOUT_MS).isSuccess()) {
+                    prefs.edit().putBoolean("legacy_tmp_cleaned", true).apply();
                 }
-                intent.setDataAndType(apkUri, "application/vnd.android.package-archive");
-                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(intent);
-                return true; // Can't verify success for manual installation
+            } catch (IOException e) {
+                Log.w(TAG, "Could not clean /data/local/tmp", e);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error installing APK", e);
-            return false;
         }
     }
     
-    private String convertToRawUrl(String url) {
-        if (url != null && url.contains("github.com") && url.contains("/blob/")) {
-            // Convert GitHub blob URL to raw URL
-            String rawUrl = url.replace("github.com", "raw.githubusercontent.com").replace("/blob/", "/");
-            Log.d(TAG, "Converted blob URL to raw URL: " + url + " -> " + rawUrl);
-            return rawUrl;
+    private static String formatProgress(ProgressSnapshot snapshot) {
+        StringBuilder text = new StringBuilder(snapshot.phase != null ? snapshot.phase : "");
+        if (snapshot.bytesTotal > 0) {
+            text.append(' ').append(snapshot.bytesDone * 100 / snapshot.bytesTotal).append("% (")
+                .append(snapshot.bytesDone / 1024).append(" / ").append(snapshot.bytesTotal / 1024).append(" KB)");
+        } else if (snapshot.bytesDone > 0) {
+            text.append(' ').append(snapshot.bytesDone / 1024).append(" KB");
         }
-        return url;
+        if (snapshot.bytesPerSecond > 0) {
+            text.append(", ").append(snapshot.bytesPerSecond / 1024).append(" KB/s");
+        }
+        if (snapshot.etaSeconds >= 0 && snapshot.bytesPerSecond > 0) {
+            text.append(", ").append(snapshot.etaSeconds).append(" s left");
+        }
+        if (snapshot.lastLine != null) {
+            text.append("\nScript: ").append(snapshot.lastLine);
+        }
+        return text.toString();
     }
     
-    private void displayChangelog(JsonObject updateInfo) {
+    private void displayChangelog(UpdateEntry update) {
         TextView changelogText = findViewById(R.id.changelogText);
         ImageView iconView = findViewById(R.id.iconView);
         TextView titleText = findViewById(R.id.titleText);
         
-        try {
-            if (updateInfo != null && updateInfo.has("changelog")) {
-                com.google.gson.JsonArray changelog = updateInfo.getAsJsonArray("changelog");
-                if (changelog.size() > 0) {
-                    StringBuilder changelogStr = new StringBuilder();
-                    for (int i = 0; i < Math.min(3, changelog.size()); i++) { // Show max 3 items
-                        if (i > 0) changelogStr.append("\n");
-                        changelogStr.append("• ").append(changelog.get(i).getAsString());
-                    }
-                    changelogText.setText(changelogStr.toString());
-                    changelogText.setVisibility(View.VISIBLE);
-                    
-                    // Hide icon and change title to "Changelog"
-                    iconView.setVisibility(View.GONE);
-                    titleText.setText("Changelog");
-                    
-                    return;
-                }
+        if (update != null && !update.changelog.isEmpty()) {
+            StringBuilder changelogStr = new StringBuilder();
+            for (int i = 0; i < Math.min(3, update.changelog.size()); i++) { // Show max 3 items
+                if (i > 0) changelogStr.append("\n");
+                changelogStr.append("• ").append(update.changelog.get(i));
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error displaying changelog", e);
+            changelogText.setText(changelogStr.toString());
+            changelogText.setVisibility(View.VISIBLE);
+            
+            // Hide icon and change title to "Changelog"
+            iconView.setVisibility(View.GONE);
+            titleText.setText("Changelog");
+            
+            return;
         }
         
         // Hide changelog if not available or error
@@ -567,49 +724,4 @@ public class MainActivity extends AppCompatActivity {
         titleText.setText("System Update");
     }
     
-    private String getNextSequentialVersion(JsonObject jsonObject, String currentVersion) {
-        try {
-            if (jsonObject.has("latest_version") && jsonObject.has("updates")) {
-                JsonObject updates = jsonObject.getAsJsonObject("updates");
-                
-                // Get all available versions and sort them
-                java.util.List<String> versions = new java.util.ArrayList<>();
-                for (String key : updates.keySet()) {
-                    versions.add(key);
-                }
-                
-                // Sort versions numerically
-                versions.sort((a, b) -> {
-                    try {
-                        double versionA = Double.parseDouble(a);
-                        double versionB = Double.parseDouble(b);
-                        return Double.compare(versionA, versionB);
-                    } catch (NumberFormatException e) {
-                        return a.compareTo(b); // Fallback to string comparison
-                    }
-                });
-                
-                // Find the next version after current version
-                double currentVersionNum = Double.parseDouble(currentVersion);
-                for (String version : versions) {
-                    try {
-                        double versionNum = Double.parseDouble(version);
-                        if (versionNum > currentVersionNum) {
-                            return version; // Return the first version higher than current
-                        }
-                    } catch (NumberFormatException e) {
-                        // Skip invalid version numbers
-                    }
-                }
-            } else {
-                // Old format - just return the version field
-                return jsonObject.get("version").getAsString();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error finding next sequential version", e);
-        }
-        
-        return null; // No updates available
-    }
-    
 }
\ No newline at end of file
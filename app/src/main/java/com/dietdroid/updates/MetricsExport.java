@@ -0,0 +1,71 @@
+package com.dietdroid.updates;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import androidx.core.content.FileProvider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dumps {@link UpdateMetrics} to {@code update-metrics.json} and
+ * {@code update-metrics.csv} in the app's external files directory, where
+ * {@code adb pull} can reach them without root, and builds a share intent
+ * for the JSON dump.
+ *
+ * From a shell: {@code am start -n com.dietdroid.updates/.MainActivity
+ * -a com.dietdroid.updates.EXPORT_METRICS}
+ */
+public final class MetricsExport {
+    public static final String ACTION_EXPORT_METRICS = "com.dietdroid.updates.EXPORT_METRICS";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MetricsExport() {
+    }
+
+    /** Writes both dumps and returns the JSON one. */
+    public static File export(Context context, String appVersion) throws IOException {
+        File dir = context.getExternalFilesDir("metrics");
+        if (dir == null) {
+            // External storage unavailable; still shareable through the provider
+            dir = new File(context.getFilesDir(), "metrics");
+        }
+        dir.mkdirs();
+        UpdateMetrics metrics = UpdateMetrics.get(context.getFilesDir());
+        metrics.flush();
+
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("manufacturer", Build.MANUFACTURER);
+        info.put("model", Build.MODEL);
+        info.put("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        info.put("fingerprint", Build.FINGERPRINT);
+        info.put("system_version", appVersion);
+
+        File json = new File(dir, "update-metrics.json");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(json), UTF_8)) {
+            metrics.exportJson(out, info);
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, "update-metrics.csv")), UTF_8)) {
+            metrics.exportCsv(out);
+        }
+        return json;
+    }
+
+    public static Intent shareIntent(Context context, File dump) {
+        Uri uri = FileProvider.getUriForFile(context, context.getPackageName() + ".provider", dump);
+        Intent send = new Intent(Intent.ACTION_SEND)
+                .setType("application/json")
+                .putExtra(Intent.EXTRA_STREAM, uri)
+                .putExtra(Intent.EXTRA_SUBJECT, "System update metrics")
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return Intent.createChooser(send, "Share update metrics");
+    }
+}
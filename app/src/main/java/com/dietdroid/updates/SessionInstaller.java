@@ -0,0 +1,185 @@
+package com.dietdroid.updates;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import android.util.Log;
+import androidx.core.content.ContextCompat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Installs APKs through {@link PackageInstaller} sessions. The download is
+ * written into the session as it arrives, so the bytes exist once (in the
+ * installer's staging area) instead of in files/, /data/local/tmp and then
+ * again in the installer. With INSTALL_PACKAGES the install is silent;
+ * otherwise the system asks the user to confirm.
+ */
+public class SessionInstaller implements StagedApk.Stager {
+    private static final String TAG = "SessionInstaller";
+    private static final String ACTION_INSTALL_STATUS = "com.dietdroid.updates.INSTALL_STATUS";
+    private static final long COMMIT_TIMEOUT_MINUTES = 10;
+    private static final AtomicInteger REQUEST_CODES = new AtomicInteger();
+
+    private final Context context;
+    private final PackageInstaller installer;
+
+    public SessionInstaller(Context context) {
+        this.context = context.getApplicationContext();
+        this.installer = this.context.getPackageManager().getPackageInstaller();
+    }
+
+    @Override
+    public StagedApk begin(UpdateEntry update, long size) throws IOException {
+        PackageInstaller.SessionParams params =
+                new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.setSize(size);
+        int sessionId = installer.createSession(params);
+        try {
+            PackageInstaller.Session session = installer.openSession(sessionId);
+            OutputStream out = session.openWrite("base.apk", 0, size);
+            return new Staged(sessionId, session, out);
+        } catch (IOException | RuntimeException e) {
+            installer.abandonSession(sessionId);
+            throw e;
+        }
+    }
+
+    /** Installs an APK that is already on disk by copying it into a session. */
+    public void install(File apkFile) throws Exception {
+        StagedApk staged = begin(null, apkFile.length());
+        try {
+            try (InputStream in = new FileInputStream(apkFile); OutputStream out = staged.output()) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            staged.commit();
+        } catch (Exception e) {
+            staged.abandon();
+            throw e;
+        }
+    }
+
+    private static InstallResult.Status statusFor(int sessionStatus) {
+        switch (sessionStatus) {
+            case PackageInstaller.STATUS_FAILURE_STORAGE:
+                return InstallResult.Status.INSUFFICIENT_STORAGE;
+            case PackageInstaller.STATUS_FAILURE_INCOMPATIBLE:
+            case PackageInstaller.STATUS_FAILURE_CONFLICT:
+                return InstallResult.Status.INCOMPATIBLE;
+            case PackageInstaller.STATUS_FAILURE_INVALID:
+                return InstallResult.Status.INVALID_APK;
+            case PackageInstaller.STATUS_FAILURE_ABORTED:
+                return InstallResult.Status.ABORTED;
+            default:
+                return InstallResult.Status.FAILED;
+        }
+    }
+
+    private class Staged implements StagedApk {
+        private final int sessionId;
+        private final PackageInstaller.Session session;
+        private final OutputStream out;
+
+        Staged(int sessionId, PackageInstaller.Session session, OutputStream out) {
+            this.sessionId = sessionId;
+            this.session = session;
+            this.out = out;
+        }
+
+        @Override
+        public OutputStream output() {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // Make the staged bytes durable before the stream goes away
+                    session.fsync(out);
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public void commit() throws Exception {
+            String action = ACTION_INSTALL_STATUS + "." + sessionId;
+            CountDownLatch done = new CountDownLatch(1);
+            int[] status = {PackageInstaller.STATUS_FAILURE};
+            String[] message = new String[1];
+
+            BroadcastReceiver receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context c, Intent intent) {
+                    int result = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+                    if (result == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                        // No INSTALL_PACKAGES: let the user confirm, the final status follows
+                        Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                        if (confirm != null) {
+                            confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                            context.startActivity(confirm);
+                            return;
+                        }
+                    }
+                    status[0] = result;
+                    message[0] = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+                    done.countDown();
+                }
+            };
+            ContextCompat.registerReceiver(context, receiver, new IntentFilter(action),
+                    ContextCompat.RECEIVER_NOT_EXPORTED);
+            try {
+                int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    // The installer fills in the status extras
+                    flags |= PendingIntent.FLAG_MUTABLE;
+                }
+                Intent callback = new Intent(action).setPackage(context.getPackageName());
+                PendingIntent pending = PendingIntent.getBroadcast(context, REQUEST_CODES.incrementAndGet(),
+                        callback, flags);
+                session.commit(pending.getIntentSender());
+                session.close();
+
+                if (!done.await(COMMIT_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                    throw new InterruptedIOException("No install result for session " + sessionId);
+                }
+            } finally {
+                context.unregisterReceiver(receiver);
+            }
+            if (status[0] != PackageInstaller.STATUS_SUCCESS) {
+                throw new InstallResult.InstallException(
+                        new InstallResult(statusFor(status[0]), null, message[0]));
+            }
+            Log.d(TAG, "Session " + sessionId + " installed");
+        }
+
+        @Override
+        public void abandon() {
+            try {
+                session.abandon();
+            } catch (RuntimeException e) {
+                // Already committed or abandoned
+                Log.w(TAG, "Could not abandon session " + sessionId, e);
+            }
+        }
+    }
+}
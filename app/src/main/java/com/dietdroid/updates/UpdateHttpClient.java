@@ -0,0 +1,69 @@
+package com.dietdroid.updates;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide OkHttp clients shared by {@link MainActivity} and
+ * {@link UpdateService}. Everything talks to the same few hosts
+ * (api.github.com, github.com, raw.githubusercontent.com), so one pool keeps
+ * their TLS/HTTP/2 connections warm between a check and the download after it.
+ */
+public final class UpdateHttpClient {
+    private static final long CACHE_SIZE = 10L * 1024 * 1024;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static OkHttpClient client;
+    private static OkHttpClient artifactClient;
+
+    private UpdateHttpClient() {
+    }
+
+    /** Client for small API/manifest requests, backed by a bounded disk cache. */
+    public static synchronized OkHttpClient get(Context context) {
+        if (client == null) {
+            Context app = context.getApplicationContext();
+            client = create(new File(app.getCacheDir(), "http")).newBuilder()
+                    .eventListenerFactory(new MetricsEventListener.Factory(UpdateMetrics.get(app.getFilesDir())))
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Client for large artifacts. Shares the connection pool and dispatcher
+     * with {@link #get} but skips the HTTP cache, which would only churn
+     * through its budget copying 100+ MB APKs.
+     */
+    public static synchronized OkHttpClient artifacts(Context context) {
+        if (artifactClient == null) {
+            artifactClient = get(context).newBuilder()
+                    .cache(null)
+                    .readTimeout(60, TimeUnit.SECONDS)
+                    .build();
+        }
+        return artifactClient;
+    }
+
+    public static OkHttpClient create(File cacheDir) {
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                // HTTP/2 lets the manifest, APK and script share one connection per host
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .cache(new Cache(cacheDir, CACHE_SIZE))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+}
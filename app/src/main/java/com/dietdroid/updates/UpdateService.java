@@ -3,24 +3,26 @@ package com.dietdroid.updates;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.Service;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 import android.content.SharedPreferences;
 import androidx.core.app.NotificationCompat;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import androidx.core.content.ContextCompat;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.List;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -28,16 +30,31 @@ import okhttp3.Response;
 import okhttp3.RequestBody;
 import okhttp3.MediaType;
 
-public class UpdateService extends Service {
+/**
+ * Background update checks, run by JobScheduler so they survive the process
+ * being killed, wait for a network, and keep wall-clock time while the
+ * device sleeps. Each check schedules the next one after the delay
+ * {@link PollScheduler} picks; the scheduler's interval and a notification
+ * waiting for this device's slot in the download window are kept in prefs,
+ * since nothing stays in memory between jobs.
+ */
+public class UpdateService extends JobService {
     private static final String TAG = "UpdateService";
     private static final String CHANNEL_ID = "update_service_channel";
     private static final int NOTIFICATION_ID = 1;
-    private static final int UPDATE_CHECK_INTERVAL = 25000; // 25 seconds
+    private static final int CHECK_JOB_ID = 1;
+    private static final int NOTIFY_JOB_ID = 2;
+    // Unchanged manifests stretch the interval from 30 minutes up to a day
+    private static final long POLL_BASE_MS = 30 * 60 * 1000;
+    private static final long POLL_MAX_MS = 24 * 60 * 60 * 1000;
     private static final String VERSION_URL = "https://api.github.com/repos/alltechdev/alltech.dev/contents/system_update.json";
     
-    private Handler updateHandler;
-    private Runnable updateRunnable;
     private SharedPreferences prefs;
+    private OkHttpClient client;
+    private PollScheduler scheduler;
+    private UpdateExecutor.Job<ManifestFetcher.Result> checkJob;
+    // Set when the system stops the running check; it reschedules the job itself
+    private boolean checkStopped;
     
     private String currentVersion;
     private String latestVersion;
@@ -45,6 +62,35 @@ public class UpdateService extends Service {
     private String apkUrl;
     private boolean isForced;
 
+    /** Schedules the first background check unless one is already pending. */
+    public static void schedule(Context context) {
+        JobScheduler jobs = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : jobs.getAllPendingJobs()) {
+            if (job.getId() == CHECK_JOB_ID) {
+                return;
+            }
+        }
+        SharedPreferences prefs = context.getSharedPreferences("system_update", Context.MODE_PRIVATE);
+        long delay = restoreScheduler(prefs).firstDelay();
+        scheduleCheck(context, delay);
+    }
+
+    private static PollScheduler restoreScheduler(SharedPreferences prefs) {
+        return new PollScheduler(POLL_BASE_MS, POLL_MAX_MS, prefs.getLong("poll_interval_ms", POLL_BASE_MS));
+    }
+
+    private static void scheduleCheck(Context context, long delayMs) {
+        Log.d(TAG, "Next update check in " + (delayMs / 1000) + " s");
+        JobInfo job = new JobInfo.Builder(CHECK_JOB_ID, new ComponentName(context, UpdateService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delayMs)
+                .setBackoffCriteria(POLL_BASE_MS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobs = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobs.schedule(job);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -52,30 +98,160 @@ public class UpdateService extends Service {
         
         prefs = getSharedPreferences("system_update", MODE_PRIVATE);
         currentVersion = prefs.getString("current_version", "1.0");
+        // Same pool as MainActivity, so connections opened here stay warm for it
+        client = UpdateHttpClient.get(this);
         
-        // Removed automatic background update checking
+        // Check-only polling: finding an update posts a notification, installing stays manual
+        createNotificationChannel();
+        scheduler = restoreScheduler(prefs);
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "UpdateService started");
-        return START_STICKY; // Restart if killed
+    public boolean onStartJob(JobParameters params) {
+        if (params.getJobId() == NOTIFY_JOB_ID) {
+            notifyPending();
+            return false;
+        }
+        checkForUpdate(params);
+        return true;
     }
 
     @Override
-    public IBinder onBind(Intent intent) {
-        return null; // Not a bound service
+    public boolean onStopJob(JobParameters params) {
+        if (params.getJobId() != CHECK_JOB_ID || checkJob == null) {
+            return false;
+        }
+        // Lost the network or the system needs the resources back; JobScheduler retries with backoff
+        checkStopped = true;
+        checkJob.cancel();
+        return true;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "UpdateService destroyed");
-        if (updateHandler != null && updateRunnable != null) {
-            updateHandler.removeCallbacks(updateRunnable);
+        if (checkJob != null) {
+            checkJob.cancel();
         }
     }
 
+    private void checkForUpdate(JobParameters params) {
+        File cacheDir = new File(getFilesDir(), "manifest");
+        OkHttpClient httpClient = client;
+        UpdateMetrics metrics = UpdateMetrics.get(getFilesDir());
+        checkStopped = false;
+        // Conditional request: an unchanged manifest costs a 304 and no parsing
+        checkJob = UpdateExecutor.get(ContextCompat.getMainExecutor(getApplicationContext())).submit(
+                UpdateExecutor.Pool.NETWORK, UpdateExecutor.Priority.LOW,
+                (token, progress) -> {
+                    try (UpdateMetrics.Span span = metrics.span("check.background")) {
+                        ManifestFetcher.Result result = new ManifestFetcher(httpClient, cacheDir).fetch(VERSION_URL, token);
+                        span.success();
+                        return result;
+                    } finally {
+                        metrics.flush();
+                    }
+                },
+                new UpdateExecutor.Callback<ManifestFetcher.Result>() {
+                    @Override
+                    public void onProgress(ProgressSnapshot snapshot) {
+                    }
+
+                    @Override
+                    public void onResult(ManifestFetcher.Result result) {
+                        long delay = result.notModified ? scheduler.onUnchanged() : scheduler.onChanged();
+                        notifyIfNewer(result.manifest);
+                        finishCheck(params, delay);
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        if (checkStopped) {
+                            return; // onStopJob asked JobScheduler to retry
+                        }
+                        Log.w(TAG, "Background update check failed", error);
+                        finishCheck(params, scheduler.onError());
+                    }
+                });
+    }
+
+    private void finishCheck(JobParameters params, long nextDelayMs) {
+        prefs.edit().putLong("poll_interval_ms", scheduler.intervalMs()).apply();
+        // Finished first: scheduling the ID of a running job would stop it
+        jobFinished(params, false);
+        scheduleCheck(this, nextDelayMs);
+    }
+
+    private void notifyIfNewer(UpdateManifest manifest) {
+        // MainActivity records installs here, so re-read rather than trust onCreate's value
+        currentVersion = prefs.getString("current_version", currentVersion);
+        Rollout rollout = InstallId.rollout(prefs);
+        List<UpdateEntry> path = manifest.versionIndex().pathFrom(currentVersion, rollout);
+        if (path.isEmpty()) {
+            cancelPendingNotification();
+            return;
+        }
+        UpdateEntry target = path.get(path.size() - 1);
+        if (target.version.equals(prefs.getString("notified_version", null))) {
+            cancelPendingNotification();
+            return; // Already told the user about this one
+        }
+        // Users download when told, so telling them at staggered times spreads the load on the origin
+        long waitMs = windowStart(target) + rollout.downloadOffsetMs(manifest, target.version)
+                - System.currentTimeMillis();
+        if (waitMs > 0) {
+            Log.d(TAG, "v" + target.version + " found, notifying in " + (waitMs / 1000) + " s");
+            prefs.edit().putString("pending_notify_version", target.version).apply();
+            // No network needed: a later check that finds something else replaces or cancels this
+            JobInfo job = new JobInfo.Builder(NOTIFY_JOB_ID, new ComponentName(this, UpdateService.class))
+                    .setMinimumLatency(waitMs)
+                    .setPersisted(true)
+                    .build();
+            JobScheduler jobs = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            jobs.schedule(job);
+            return;
+        }
+        cancelPendingNotification();
+        notifyAvailable(target.version);
+    }
+
+    /** Runs when this device's slot in the download window arrives. */
+    private void notifyPending() {
+        String version = prefs.getString("pending_notify_version", null);
+        prefs.edit().remove("pending_notify_version").apply();
+        if (version == null || version.equals(prefs.getString("current_version", currentVersion))
+                || version.equals(prefs.getString("notified_version", null))) {
+            return; // Installed from the app meanwhile, or already announced
+        }
+        notifyAvailable(version);
+    }
+
+    private void cancelPendingNotification() {
+        if (prefs.getString("pending_notify_version", null) != null) {
+            prefs.edit().remove("pending_notify_version").apply();
+            JobScheduler jobs = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            jobs.cancel(NOTIFY_JOB_ID);
+        }
+    }
+
+    private void notifyAvailable(String version) {
+        prefs.edit().putString("notified_version", version).apply();
+        updateNotification("Update available: v" + version + " - open System Update to install");
+    }
+
+    /** When {@code update} became available: its rollout start, or else when this device first saw it. */
+    private long windowStart(UpdateEntry update) {
+        if (update.rolloutStartMs > 0) {
+            return update.rolloutStartMs;
+        }
+        if (!update.version.equals(prefs.getString("seen_version", null))) {
+            prefs.edit().putString("seen_version", update.version)
+                    .putLong("seen_version_at", System.currentTimeMillis()).apply();
+        }
+        return prefs.getLong("seen_version_at", System.currentTimeMillis());
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -113,12 +289,21 @@ public class UpdateService extends Service {
                 .setSmallIcon(R.drawable.ic_system_update)
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setOngoing(true)
+                .setContentIntent(openAppIntent())
                 .build();
         
         NotificationManager manager = getSystemService(NotificationManager.class);
         manager.notify(NOTIFICATION_ID, notification);
     }
 
+    private PendingIntent openAppIntent() {
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), flags);
+    }
+
     // Removed automatic background update installation functionality
 
     // Removed automatic script download and execution functionality
@@ -136,49 +321,4 @@ public class UpdateService extends Service {
         return url;
     }
     
-    private String getNextSequentialVersion(JsonObject jsonObject, String currentVersion) {
-        try {
-            if (jsonObject.has("latest_version") && jsonObject.has("updates")) {
-                JsonObject updates = jsonObject.getAsJsonObject("updates");
-                
-                // Get all available versions and sort them
-                java.util.List<String> versions = new java.util.ArrayList<>();
-                for (String key : updates.keySet()) {
-                    versions.add(key);
-                }
-                
-                // Sort versions numerically
-                versions.sort((a, b) -> {
-                    try {
-                        double versionA = Double.parseDouble(a);
-                        double versionB = Double.parseDouble(b);
-                        return Double.compare(versionA, versionB);
-                    } catch (NumberFormatException e) {
-                        return a.compareTo(b); // Fallback to string comparison
-                    }
-                });
-                
-                // Find the next version after current version
-                double currentVersionNum = Double.parseDouble(currentVersion);
-                for (String version : versions) {
-                    try {
-                        double versionNum = Double.parseDouble(version);
-                        if (versionNum > currentVersionNum) {
-                            return version; // Return the first version higher than current
-                        }
-                    } catch (NumberFormatException e) {
-                        // Skip invalid version numbers
-                    }
-                }
-            } else {
-                // Old format - just return the version field
-                return jsonObject.get("version").getAsString();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error finding next sequential version", e);
-        }
-        
-        return null; // No updates available
-    }
-    
 }
\ No newline at end of file
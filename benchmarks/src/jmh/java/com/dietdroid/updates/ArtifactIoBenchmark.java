@@ -0,0 +1,82 @@
+package com.dietdroid.updates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Per-byte costs of handling an artifact on disk: SHA-256 verification and
+ * copying it (as when staging an APK for an installer) with different
+ * buffer sizes, against a channel transfer.
+ */
+@State(Scope.Benchmark)
+public class ArtifactIoBenchmark {
+    @Param({"65536", "4194304", "67108864"})
+    public int size;
+
+    @Param({"8192", "65536", "262144"})
+    public int bufferSize;
+
+    private File source;
+    private File target;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = SyntheticData.artifact(size);
+        target = File.createTempFile("bench-copy-", ".bin");
+        target.deleteOnExit();
+        buffer = new byte[bufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public byte[] sha256() throws IOException {
+        MessageDigest digest = Digests.sha256();
+        Digests.update(digest, source, size, buffer);
+        return digest.digest();
+    }
+
+    @Benchmark
+    public long bufferedCopy() throws IOException {
+        long total = 0;
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(target)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long channelTransfer() throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return position;
+        }
+    }
+}
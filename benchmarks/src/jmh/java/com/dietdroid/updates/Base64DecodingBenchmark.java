@@ -0,0 +1,44 @@
+package com.dietdroid.updates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Streaming Base64 decoding of contents-API payloads, against the JDK's
+ * MIME decoder (which materialises the whole result) as a baseline.
+ */
+@State(Scope.Benchmark)
+public class Base64DecodingBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private String text;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() {
+        text = SyntheticData.base64Text(SyntheticData.bytes(size));
+    }
+
+    @Benchmark
+    public long streaming() throws IOException {
+        Base64DecodingStream in = new Base64DecodingStream(text);
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public byte[] jdkMimeDecoder() {
+        return Base64.getMimeDecoder().decode(text);
+    }
+}
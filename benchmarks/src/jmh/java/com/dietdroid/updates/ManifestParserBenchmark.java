@@ -0,0 +1,40 @@
+package com.dietdroid.updates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/** Parsing system_update.json, raw and wrapped in a contents-API response. */
+@State(Scope.Benchmark)
+public class ManifestParserBenchmark {
+    @Param({"2", "100", "1000", "10000"})
+    public int versions;
+
+    // Short entries vs changelogs long enough to hit the parser's truncation
+    @Param({"100", "20000"})
+    public int changelogChars;
+
+    private byte[] raw;
+    private byte[] envelope;
+
+    @Setup
+    public void setUp() {
+        raw = SyntheticData.manifest(versions, changelogChars);
+        envelope = SyntheticData.contentsEnvelope(raw);
+    }
+
+    @Benchmark
+    public UpdateManifest parseRaw() throws IOException {
+        return ManifestParser.parse(new ByteArrayInputStream(raw));
+    }
+
+    @Benchmark
+    public UpdateManifest parseEnvelope() throws IOException {
+        return ManifestParser.parseEnvelope(new ByteArrayInputStream(envelope));
+    }
+}
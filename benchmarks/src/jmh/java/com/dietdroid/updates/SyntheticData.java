@@ -0,0 +1,127 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.Random;
+
+/** Deterministic manifests and artifacts for the benchmarks. */
+final class SyntheticData {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHANGELOG_ITEMS = 5;
+
+    private SyntheticData() {
+    }
+
+    /** Version string of the {@code i}-th release, e.g. 1.0.0, 1.0.1, ... 1.99.99. */
+    static String version(int i) {
+        return "1." + (i / 100) + "." + (i % 100);
+    }
+
+    /**
+     * A system_update.json with {@code versions} releases, each with an APK,
+     * a script, a patch from the previous release and a changelog of about
+     * {@code changelogChars} characters.
+     */
+    static byte[] manifest(int versions, int changelogChars) {
+        Random random = new Random(versions * 31L + changelogChars);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"latest_version\": \"").append(version(versions - 1)).append("\",\n");
+        json.append("  \"required_android_version\": \"21\",\n  \"updates\": {\n");
+        for (int i = 0; i < versions; i++) {
+            String version = version(i);
+            json.append("    \"").append(version).append("\": {\n");
+            json.append("      \"apk_url\": \"https://github.com/example/releases/download/v")
+                .append(version).append("/app-release.apk\",\n");
+            json.append("      \"apk_sha256\": \"").append(hex(random, 32)).append("\",\n");
+            json.append("      \"apk_size\": ").append(20000000 + random.nextInt(80000000)).append(",\n");
+            json.append("      \"apk_package\": \"com.example.system\",\n");
+            json.append("      \"script_url\": \"https://raw.githubusercontent.com/example/main/update_")
+                .append(version).append(".sh\",\n");
+            json.append("      \"script_sha256\": \"").append(hex(random, 32)).append("\",\n");
+            if (i > 0) {
+                json.append("      \"patches\": {\"").append(version(i - 1)).append("\": {")
+                    .append("\"url\": \"https://github.com/example/releases/download/v").append(version)
+                    .append("/from-").append(version(i - 1)).append(".vcdiff\", ")
+                    .append("\"sha256\": \"").append(hex(random, 32)).append("\", ")
+                    .append("\"size\": ").append(1000000 + random.nextInt(5000000)).append("}},\n");
+            }
+            json.append("      \"changelog\": [");
+            for (int item = 0; item < CHANGELOG_ITEMS; item++) {
+                json.append(item == 0 ? "\"" : ", \"")
+                    .append(words(random, changelogChars / CHANGELOG_ITEMS)).append('"');
+            }
+            json.append("],\n");
+            json.append("      \"description\": \"").append(words(random, 80)).append("\",\n");
+            json.append("      \"file_size\": \"42MB\",\n");
+            json.append("      \"forced\": ").append(random.nextInt(10) == 0).append(",\n");
+            json.append("      \"automatic\": false\n");
+            json.append(i == versions - 1 ? "    }\n" : "    },\n");
+        }
+        json.append("  }\n}\n");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /** A GitHub contents-API response carrying {@code content} as line-wrapped Base64. */
+    static byte[] contentsEnvelope(byte[] content) {
+        return ("{\"name\": \"system_update.json\", \"encoding\": \"base64\", \"content\": \""
+                + base64Lines(content) + "\"}").getBytes(UTF_8);
+    }
+
+    /** Base64 with a line break every 60 characters, as GitHub sends it. */
+    static String base64Lines(byte[] data) {
+        String encoded = Base64.getEncoder().encodeToString(data);
+        StringBuilder wrapped = new StringBuilder(encoded.length() + encoded.length() / 60 * 2);
+        for (int i = 0; i < encoded.length(); i += 60) {
+            wrapped.append(encoded, i, Math.min(encoded.length(), i + 60)).append("\\n");
+        }
+        return wrapped.toString();
+    }
+
+    /** The same Base64 as {@link #base64Lines} after JSON unescaping. */
+    static String base64Text(byte[] data) {
+        return base64Lines(data).replace("\\n", "\n");
+    }
+
+    static byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /** A temp file of {@code size} random bytes, deleted on exit. */
+    static File artifact(int size) throws IOException {
+        File file = File.createTempFile("bench-artifact-", ".bin");
+        file.deleteOnExit();
+        byte[] chunk = bytes(Math.min(size, 1024 * 1024));
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static String hex(Random random, int bytes) {
+        byte[] data = new byte[bytes];
+        random.nextBytes(data);
+        return Digests.hex(data);
+    }
+
+    private static String words(Random random, int chars) {
+        StringBuilder text = new StringBuilder(chars + 10);
+        while (text.length() < chars) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            int length = 3 + random.nextInt(8);
+            for (int i = 0; i < length; i++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package com.dietdroid.updates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Version resolution: building the sorted index once per manifest, then the
+ * queries the app makes against it.
+ */
+@State(Scope.Benchmark)
+public class VersionIndexBenchmark {
+    @Param({"2", "100", "1000", "10000"})
+    public int versions;
+
+    private UpdateManifest manifest;
+    private VersionIndex index;
+    private String oldest;
+    private String middle;
+
+    @Setup
+    public void setUp() throws IOException {
+        manifest = ManifestParser.parse(new ByteArrayInputStream(SyntheticData.manifest(versions, 100)));
+        index = new VersionIndex(manifest);
+        oldest = SyntheticData.version(0);
+        middle = SyntheticData.version(versions / 2);
+    }
+
+    @Benchmark
+    public VersionIndex buildIndex() {
+        return new VersionIndex(manifest);
+    }
+
+    @Benchmark
+    public UpdateEntry nextAfterMiddle() {
+        return index.nextAfter(middle);
+    }
+
+    /** Worst case: a device on the oldest release walks the whole chain. */
+    @Benchmark
+    public List<UpdateEntry> pathFromOldest() {
+        return index.pathFrom(oldest);
+    }
+
+    @Benchmark
+    public int parseVersions() {
+        int sum = 0;
+        for (String version : manifest.updates.keySet()) {
+            sum += Version.parse(version).hashCode();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,30 @@
+package com.dietdroid.updates;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A downloadable file of an update (its APK or script) together with the
+ * optional integrity data the manifest publishes for it.
+ */
+public class Artifact {
+    public String url;
+    /** Other URLs serving the same bytes, tried alongside {@link #url}. */
+    public final List<String> mirrors = new ArrayList<>();
+    /** Lower-case hex SHA-256 of the file, or null if the manifest has none. */
+    public String sha256;
+    /** Exact size in bytes, or -1 if unknown. */
+    public long size = -1;
+
+    /** {@link #url} followed by the mirrors, without duplicates. */
+    public List<String> urls() {
+        List<String> urls = new ArrayList<>();
+        urls.add(url);
+        for (String mirror : mirrors) {
+            if (mirror != null && !urls.contains(mirror)) {
+                urls.add(mirror);
+            }
+        }
+        return urls;
+    }
+}
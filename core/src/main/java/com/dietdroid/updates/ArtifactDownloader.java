@@ -0,0 +1,985 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Streams update artifacts (APKs, scripts) straight to disk through a fixed,
+ * reusable buffer, so peak heap use stays flat regardless of payload size.
+ *
+ * Bytes go to a {@code .part} file next to the target, which is renamed into
+ * place only once the download is complete (and verified), so the target
+ * name never refers to a partial file.
+ *
+ * Downloads are resumable: progress is checkpointed to a {@link DownloadState}
+ * sidecar of the {@code .part} file, and the next attempt (in this process or
+ * after a restart) continues with {@code Range}/{@code If-Range}. If the
+ * server object changed meanwhile it answers 200 and the download restarts
+ * from zero.
+ *
+ * When the manifest publishes a SHA-256 for an artifact, the digest is
+ * computed in the same pass that writes the file and checked before the
+ * download is reported complete. A verified file gets a {@code .sha256}
+ * marker, so asking for the same artifact again returns immediately.
+ *
+ * An artifact with mirrors is requested from the most promising few at once
+ * (see {@link MirrorHealth}); the first to answer wins and the rest are
+ * cancelled. If the winner's throughput then falls below a floor, the
+ * download continues from another mirror with {@code Range}. The final
+ * digest check makes the pieces safe to combine.
+ *
+ * With {@link #setAcceptGzip}, fresh requests accept gzip, which servers use
+ * for text such as scripts; APKs are already compressed and are always
+ * fetched as they are. An artifact published as {@code .gz} is inflated
+ * while it is written. Sizes and digests always describe the decoded bytes.
+ * Either way the file cannot be resumed, since offsets into a compressed
+ * stream mean nothing on disk.
+ *
+ * With {@link #setMaxConnections} above one, a large artifact on a server
+ * that honours ranges is fetched over several connections at once (see
+ * {@link SegmentedDownload}) and hashed once it is complete.
+ *
+ * Instances are not thread safe; use one downloader per worker.
+ */
+public class ArtifactDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Head room left on the data partition after the artifact is written
+    private static final long FREE_SPACE_MARGIN = 8L * 1024 * 1024;
+    // How much data may be lost (and re-fetched) if the process dies
+    private static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_BASE_DELAY_MS = 1000;
+    // Mirrors requested at once; the rest are fallbacks
+    private static final int RACE_WIDTH = 3;
+    // Mirrors predicted to be more than this many times slower than the best are not raced
+    private static final double RACE_SLACK = 2;
+    // A mirror slower than this over a whole window is abandoned if another exists
+    private static final long MIN_BYTES_PER_SECOND = 64 * 1024;
+    private static final long THROUGHPUT_WINDOW_MS = 5000;
+    // Throughput samples from less data than this are mostly latency
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 256 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * @param bytesDone  bytes written to the target file so far
+         * @param bytesTotal expected size, or -1 if the server did not send one
+         */
+        void onProgress(long bytesDone, long bytesTotal);
+    }
+
+    public interface StreamOpener {
+        /** Opens the destination once the response's exact length is known. */
+        OutputStream open(long contentLength) throws IOException;
+    }
+
+    /** Failures that retrying cannot fix (4xx, disk full, ...). */
+    static class FatalDownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FatalDownloadException(String message) {
+            super(message);
+        }
+    }
+
+    /** The downloaded bytes do not match the size or digest in the manifest. */
+    static class IntegrityException extends FatalDownloadException {
+        private static final long serialVersionUID = 1L;
+
+        IntegrityException(String message) {
+            super(message);
+        }
+    }
+
+    /** The current mirror fell below the throughput floor; continue elsewhere. */
+    static class SlowMirrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SlowMirrorException(String message) {
+            super(message);
+        }
+    }
+
+    private final OkHttpClient client;
+    private final MirrorHealth health;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // Guarded by itself
+    private final List<Call> activeCalls = new ArrayList<>();
+    private volatile SegmentedDownload segmented;
+    private volatile boolean cancelled;
+    private int maxConnections = 1;
+    private boolean acceptGzip;
+
+    public ArtifactDownloader(OkHttpClient client) {
+        this(client, null);
+    }
+
+    /** @param health mirror scores to rank by and update, or null to keep them for this instance only */
+    public ArtifactDownloader(OkHttpClient client, MirrorHealth health) {
+        this.client = client;
+        this.health = health != null ? health : new MirrorHealth(null);
+    }
+
+    /**
+     * Allows downloads to a file to use up to {@code maxConnections}
+     * connections for one artifact; 1 (the default) keeps one stream each.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Lets fresh requests ask for gzip; for text artifacts such as scripts.
+     * Off by default, so an APK is never compressed again on the fly and
+     * stays resumable.
+     */
+    public void setAcceptGzip(boolean acceptGzip) {
+        this.acceptGzip = acceptGzip;
+    }
+
+    /**
+     * Downloads {@code url} into {@code target}, resuming a previous partial
+     * download of the same URL when possible and retrying transient failures.
+     *
+     * @return the size of the completed file
+     */
+    public long download(String url, File target, ProgressListener listener) throws IOException {
+        return download(Collections.singletonList(url), null, -1, target, listener);
+    }
+
+    /**
+     * Like {@link #download(String, File, ProgressListener)}, but also checks
+     * the artifact's published size and SHA-256, and uses its mirrors. A
+     * target that already holds the verified artifact is returned without
+     * touching the network.
+     */
+    public long download(Artifact artifact, File target, ProgressListener listener) throws IOException {
+        return download(urlsOf(artifact), artifact.sha256, artifact.size, target, listener);
+    }
+
+    private long download(List<String> urls, String sha256, long size, File target, ProgressListener listener)
+            throws IOException {
+        if (sha256 != null && isVerified(target, sha256, size)) {
+            if (listener != null) {
+                listener.onProgress(target.length(), target.length());
+            }
+            return target.length();
+        }
+        IOException lastError = null;
+        // Without a digest, pieces from different mirrors could not be checked
+        int switchesLeft = sha256 != null ? urls.size() - 1 : 0;
+        // Cleared once a server that advertises ranges turns out not to honour them
+        boolean allowParallel = true;
+        try {
+            int attempt = 0;
+            while (attempt < MAX_ATTEMPTS) {
+                checkCancelled();
+                // Moving off a slow mirror or to one stream is not a failure worth backing off for
+                if (attempt > 0 && !(lastError instanceof SlowMirrorException)
+                        && !(lastError instanceof SegmentedDownload.RangeNotHonouredException)) {
+                    try {
+                        Thread.sleep(RETRY_BASE_DELAY_MS << (attempt - 1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Download interrupted");
+                    }
+                }
+                try {
+                    return downloadOnce(health.rank(urls), sha256, size, target, listener, switchesLeft > 0,
+                            allowParallel);
+                } catch (SlowMirrorException e) {
+                    switchesLeft--;
+                    lastError = e;
+                } catch (SegmentedDownload.RangeNotHonouredException e) {
+                    // The same server would say yes to parallel ranges again; one stream still works
+                    allowParallel = false;
+                    lastError = e;
+                } catch (FatalDownloadException e) {
+                    throw e;
+                } catch (IOException e) {
+                    checkCancelled();
+                    if (isInterruption(e)) {
+                        throw e;
+                    }
+                    // Read timeouts land here too and resume from the checkpoint
+                    lastError = e;
+                    attempt++;
+                }
+            }
+            throw lastError;
+        } finally {
+            health.save();
+        }
+    }
+
+    /**
+     * Aborts the download in progress (from any thread). The partial file is
+     * kept so a later download can resume it.
+     */
+    public void cancel() {
+        cancelled = true;
+        SegmentedDownload download = segmented;
+        if (download != null) {
+            download.cancel();
+        }
+        synchronized (activeCalls) {
+            for (Call call : activeCalls) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * True if {@code e} means the thread was interrupted. A read timeout is
+     * an InterruptedIOException as well, but it is a network failure worth
+     * retrying.
+     */
+    static boolean isInterruption(IOException e) {
+        return Thread.currentThread().isInterrupted()
+                || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException));
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Download cancelled");
+        }
+    }
+
+    /**
+     * Streams {@code url} into the stream returned by {@code opener} without
+     * touching the disk. Single attempt and not resumable; the caller decides
+     * how to recover. Fails if the server does not send Content-Length.
+     *
+     * @return the number of bytes streamed
+     */
+    public long streamTo(String url, StreamOpener opener, ProgressListener listener) throws IOException {
+        return streamTo(Collections.singletonList(url), null, -1, opener, listener);
+    }
+
+    /**
+     * Like {@link #streamTo(String, StreamOpener, ProgressListener)}, but
+     * throws {@link IntegrityException} after the last byte if the stream
+     * does not match the artifact's size or SHA-256; the caller must then
+     * throw away whatever it wrote. Mirrors are raced for the first byte, but
+     * a stream cannot move to another one halfway.
+     */
+    public long streamTo(Artifact artifact, StreamOpener opener, ProgressListener listener) throws IOException {
+        try {
+            return streamTo(health.rank(urlsOf(artifact)), artifact.sha256, artifact.size, opener, listener);
+        } finally {
+            health.save();
+        }
+    }
+
+    private long streamTo(List<String> urls, String sha256, long size, StreamOpener opener,
+                          ProgressListener listener) throws IOException {
+        checkCancelled();
+        Opened opened = open(urls, url -> new Request.Builder()
+                .url(url)
+                .header("Accept-Encoding", "identity")
+                .build());
+        String url = opened.url;
+        try (Response response = opened.response) {
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " for " + url);
+            }
+            ResponseBody body = response.body();
+            // The installer needs the inflated size up front, which only the manifest knows
+            long total = isPrecompressed(url) ? size : body != null ? body.contentLength() : -1;
+            if (total < 0) {
+                throw new FatalDownloadException("No Content-Length for " + url);
+            }
+            checkSize(url, size, total);
+            MessageDigest digest = sha256 != null ? Digests.sha256() : null;
+            long done = 0;
+            long start = System.nanoTime();
+            try (InputStream in = decode(body.byteStream(), response, url); OutputStream out = opener.open(total)) {
+                int filled;
+                while ((filled = fill(in)) > 0) {
+                    checkCancelled();
+                    out.write(buffer, 0, filled);
+                    if (digest != null) {
+                        digest.update(buffer, 0, filled);
+                    }
+                    done += filled;
+                    if (listener != null) {
+                        listener.onProgress(done, total);
+                    }
+                }
+            }
+            if (done != total) {
+                throw new IOException("Truncated download: got " + done + " of " + total + " bytes");
+            }
+            recordThroughput(url, done, System.nanoTime() - start);
+            if (digest != null) {
+                checkDigest(url, sha256, digest);
+            }
+            return done;
+        } finally {
+            // Tracked until now so cancel() could abort the body read
+            untrack(opened.call);
+        }
+    }
+
+    /** Removes a download, its partial file, sidecar and verification marker. */
+    public static void discard(File target) {
+        target.delete();
+        File part = partFor(target);
+        part.delete();
+        DownloadState.sidecarFor(part).delete();
+        markerFor(target).delete();
+    }
+
+    /** The file a download of {@code target} is written to until it completes. */
+    static File partFor(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    private static void publish(File part, File target) throws IOException {
+        target.delete();
+        markerFor(target).delete();
+        if (!part.renameTo(target)) {
+            throw new IOException("Could not move " + part + " into place");
+        }
+    }
+
+    /**
+     * True if {@code target} holds a complete file with the given SHA-256.
+     * Trusts an up-to-date marker; otherwise hashes the file once and writes
+     * the marker if it matches.
+     */
+    static boolean isVerified(File target, String sha256, long size) {
+        if (!target.isFile() || (size >= 0 && target.length() != size)) {
+            return false;
+        }
+        File marker = markerFor(target);
+        Properties props = new Properties();
+        if (marker.isFile()) {
+            try (InputStream in = new FileInputStream(marker)) {
+                props.load(in);
+                if (Digests.matches(sha256, props.getProperty("sha256"))
+                        && String.valueOf(target.length()).equals(props.getProperty("length"))
+                        && String.valueOf(target.lastModified()).equals(props.getProperty("modified"))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // Fall through and hash the file
+            }
+        }
+        try {
+            if (Digests.matches(sha256, Digests.sha256Hex(target))) {
+                markVerified(target, sha256);
+                return true;
+            }
+        } catch (IOException e) {
+            // Unreadable counts as not verified
+        }
+        return false;
+    }
+
+    /** Records that {@code target} is complete and has the given SHA-256. */
+    static void markVerified(File target, String sha256) {
+        Properties props = new Properties();
+        props.setProperty("sha256", sha256.trim().toLowerCase());
+        props.setProperty("length", String.valueOf(target.length()));
+        props.setProperty("modified", String.valueOf(target.lastModified()));
+        File marker = markerFor(target);
+        File tmp = new File(marker.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        } catch (IOException e) {
+            tmp.delete();
+            return; // Only costs a re-hash next time
+        }
+        if (!tmp.renameTo(marker)) {
+            tmp.delete();
+        }
+    }
+
+    static File markerFor(File target) {
+        return new File(target.getPath() + ".sha256");
+    }
+
+    private static void checkSize(String url, long expected, long actual) throws IntegrityException {
+        if (expected >= 0 && actual >= 0 && expected != actual) {
+            throw new IntegrityException("Size mismatch for " + url + ": expected " + expected
+                    + " bytes, server sent " + actual);
+        }
+    }
+
+    private static void checkDigest(String url, String expected, MessageDigest digest) throws IntegrityException {
+        String actual = Digests.hex(digest.digest());
+        if (!Digests.matches(expected, actual)) {
+            throw new IntegrityException("SHA-256 mismatch for " + url + ": expected " + expected
+                    + ", got " + actual);
+        }
+    }
+
+    private long downloadOnce(List<String> urls, String sha256, long size, File target,
+                              ProgressListener listener, boolean canSwitch, boolean allowParallel)
+            throws IOException {
+        File part = partFor(target);
+        File sidecar = DownloadState.sidecarFor(part);
+        DownloadState previous = DownloadState.load(sidecar);
+        long resumeFrom = 0;
+        if (previous != null && previous.bytesWritten > 0 && previous.isResumable()
+                && part.length() >= previous.bytesWritten) {
+            resumeFrom = previous.bytesWritten;
+        }
+        long start = resumeFrom;
+
+        Opened opened = open(urls, url -> {
+            Request.Builder builder = new Request.Builder().url(url);
+            if (start > 0 && !isPrecompressed(url)) {
+                if (url.equals(previous.url) && previous.ifRangeValidator() != null) {
+                    builder.header("Range", "bytes=" + start + "-")
+                           .header("If-Range", previous.ifRangeValidator());
+                } else if (Digests.matches(sha256, previous.sha256)) {
+                    // Another mirror of the same bytes; the digest check vouches for the join
+                    builder.header("Range", "bytes=" + start + "-");
+                }
+            }
+            // Identity encoding keeps byte offsets meaningful for Range requests
+            boolean ranged = builder.build().header("Range") != null;
+            return builder.header("Accept-Encoding", acceptGzip && !ranged ? "gzip" : "identity").build();
+        });
+        String url = opened.url;
+        long offset = opened.response.request().header("Range") != null ? resumeFrom : 0;
+        try (Response response = opened.response) {
+            int code = response.code();
+            if (offset > 0 && code == 416) {
+                if (previous.totalBytes == offset) {
+                    // Everything arrived before we could record completion
+                    long done = finish(sidecar, offset);
+                    if (sha256 != null && !Digests.matches(sha256, Digests.sha256Hex(part))) {
+                        discard(target);
+                        throw new IOException("SHA-256 mismatch for " + url + ", restarting");
+                    }
+                    publish(part, target);
+                    if (sha256 != null) {
+                        markVerified(target, sha256);
+                    }
+                    return done;
+                }
+                discard(target);
+                throw new IOException("Stale partial download for " + url + ", restarting");
+            }
+            if (!response.isSuccessful()) {
+                String message = "HTTP " + code + " for " + url;
+                if (code >= 500 || code == 408 || code == 429) {
+                    throw new IOException(message);
+                }
+                throw new FatalDownloadException(message);
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response body for " + url);
+            }
+
+            boolean encoded = isEncoded(response, url);
+            boolean resumed = !encoded && offset > 0 && code == 206 && contentRangeStart(response) == offset;
+            if (!resumed) {
+                // Fresh download, or the object changed and If-Range sent the whole thing
+                offset = 0;
+            }
+            long total;
+            if (encoded) {
+                // Content-Length counts compressed bytes; only the manifest knows the real size
+                total = size;
+            } else {
+                total = body.contentLength() >= 0 ? offset + body.contentLength() : -1;
+            }
+            if (size >= 0 && total >= 0 && size != total) {
+                discard(target);
+                checkSize(url, size, total);
+            }
+            ensureFreeSpace(part, total);
+            // Ranges fetched in parallel need a validator or digest to prove they are one file
+            boolean parallel = allowParallel && maxConnections > 1 && !encoded
+                    && SegmentedDownload.isWorthwhile(response, offset, total)
+                    && (sha256 != null || response.header("ETag") != null || response.header("Last-Modified") != null);
+
+            MessageDigest digest = null;
+            if (sha256 != null && !parallel) {
+                digest = Digests.sha256();
+                if (resumed) {
+                    // Bring the digest up to the resume point from what is already on disk
+                    Digests.update(digest, part, offset, buffer);
+                }
+            }
+
+            DownloadState state = new DownloadState();
+            state.url = url;
+            if (!encoded) {
+                state.etag = response.header("ETag");
+                state.lastModified = response.header("Last-Modified");
+                state.sha256 = sha256;
+            }
+            state.totalBytes = total;
+            state.bytesWritten = offset;
+            if (!resumed) {
+                sidecar.delete();
+            }
+
+            try (RandomAccessFile out = new RandomAccessFile(part, "rw");
+                 InputStream in = decode(body.byteStream(), response, url)) {
+                if (!resumed) {
+                    // Reserve the full size up front so a full disk fails here, not at 90%
+                    out.setLength(Math.max(total, 0));
+                }
+                out.seek(offset);
+
+                long done = parallel
+                        ? copySegmented(opened.call, in, out, state, sidecar, listener)
+                        : copy(in, out, digest, state, sidecar, listener, canSwitch && !encoded);
+
+                if (total >= 0 && done != total) {
+                    throw new IOException("Truncated download: got " + done + " of " + total + " bytes");
+                }
+                out.setLength(done);
+            }
+            long done = finish(sidecar, state.bytesWritten);
+            if (parallel && sha256 != null) {
+                // Ranges arrive out of order, so hash the finished file in one pass
+                digest = Digests.sha256();
+                Digests.update(digest, part, done, buffer);
+            }
+            if (digest != null) {
+                try {
+                    checkSize(url, size, done);
+                    checkDigest(url, sha256, digest);
+                } catch (IntegrityException e) {
+                    discard(target);
+                    if (resumed) {
+                        // The kept prefix may be what is corrupt; one more try from zero
+                        throw new IOException(e.getMessage() + " (resumed download, restarting)");
+                    }
+                    throw e;
+                }
+            }
+            publish(part, target);
+            if (sha256 != null) {
+                markVerified(target, sha256);
+            }
+            return done;
+        } finally {
+            untrack(opened.call);
+        }
+    }
+
+    private long copySegmented(Call call, InputStream in, RandomAccessFile out, DownloadState state,
+                               File sidecar, ProgressListener listener) throws IOException {
+        // Over HTTP/2 every range would share one TCP connection, which is what we want to avoid
+        OkHttpClient http1 = client.newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+        SegmentedDownload download = new SegmentedDownload(http1, state.url, out.getChannel(), state, sidecar,
+                maxConnections);
+        segmented = download;
+        if (cancelled) {
+            download.cancel();
+        }
+        long start = System.nanoTime();
+        long offset = state.bytesWritten;
+        try {
+            long done = download.run(call, in, listener);
+            recordThroughput(state.url, done - offset, System.nanoTime() - start);
+            return done;
+        } finally {
+            segmented = null;
+        }
+    }
+
+    /**
+     * @param canSwitch whether to give up on this mirror (with
+     *                  {@link SlowMirrorException}) when a throughput window
+     *                  falls below the floor
+     */
+    private long copy(InputStream in, RandomAccessFile out, MessageDigest digest, DownloadState state,
+                      File sidecar, ProgressListener listener, boolean canSwitch) throws IOException {
+        long sinceCheckpoint = 0;
+        long windowStart = System.nanoTime();
+        long windowBytes = 0;
+        try {
+            while (true) {
+                checkCancelled();
+                int filled = fill(in);
+                if (filled == 0) {
+                    recordThroughput(state.url, windowBytes, System.nanoTime() - windowStart);
+                    return state.bytesWritten;
+                }
+                out.write(buffer, 0, filled);
+                if (digest != null) {
+                    digest.update(buffer, 0, filled);
+                }
+                state.bytesWritten += filled;
+                sinceCheckpoint += filled;
+                if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                    checkpoint(out, state, sidecar);
+                    sinceCheckpoint = 0;
+                }
+                if (listener != null) {
+                    listener.onProgress(state.bytesWritten, state.totalBytes);
+                }
+                if (filled < buffer.length) {
+                    recordThroughput(state.url, windowBytes + filled, System.nanoTime() - windowStart);
+                    return state.bytesWritten;
+                }
+
+                windowBytes += filled;
+                long elapsed = System.nanoTime() - windowStart;
+                if (elapsed >= THROUGHPUT_WINDOW_MS * 1000000L) {
+                    long rate = recordThroughput(state.url, windowBytes, elapsed);
+                    if (canSwitch && rate < MIN_BYTES_PER_SECOND) {
+                        health.recordFailure(state.url);
+                        throw new SlowMirrorException(state.url + " is down to " + rate + " bytes/s");
+                    }
+                    windowStart = System.nanoTime();
+                    windowBytes = 0;
+                }
+            }
+        } catch (IOException e) {
+            if (!cancelled && !(e instanceof SlowMirrorException)) {
+                health.recordFailure(state.url);
+            }
+            // Everything written so far is valid; keep it for the next attempt
+            try {
+                checkpoint(out, state, sidecar);
+            } catch (IOException ignored) {
+                // The original failure is more useful to the caller
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the whole buffer unless the stream ends first; network reads
+     * return small segments and we want few, large writes.
+     */
+    private int fill(InputStream in) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static void checkpoint(RandomAccessFile out, DownloadState state, File sidecar) throws IOException {
+        if (!state.isResumable()) {
+            return; // Not resumable; nothing worth recording
+        }
+        // Data must be durable before the sidecar claims it
+        out.getFD().sync();
+        state.save(sidecar);
+    }
+
+    private static long finish(File sidecar, long size) {
+        sidecar.delete();
+        return size;
+    }
+
+    static long contentRangeStart(Response response) {
+        // Content-Range: bytes 1000-4999/5000
+        String range = response.header("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Feeds one throughput sample to {@link MirrorHealth} unless it is too
+     * short to say anything about bandwidth.
+     *
+     * @return the measured rate in bytes per second
+     */
+    private long recordThroughput(String url, long bytes, long nanos) {
+        if (nanos <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long rate = bytes * 1000000000L / nanos;
+        if (bytes >= MIN_THROUGHPUT_SAMPLE_BYTES || nanos >= THROUGHPUT_WINDOW_MS * 1000000L) {
+            health.recordThroughput(url, rate);
+        }
+        return rate;
+    }
+
+    private static List<String> urlsOf(Artifact artifact) throws FatalDownloadException {
+        List<String> urls = new ArrayList<>();
+        for (String url : artifact.urls()) {
+            // zstd would need a native decoder; mirrors in other formats still work
+            if (url != null && !hasSuffix(url, ".zst")) {
+                urls.add(UpdateFetcher.toRawGitHubUrl(url));
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new FatalDownloadException("No supported URL for " + artifact.url);
+        }
+        return urls;
+    }
+
+    /** True for artifacts published gzip-compressed, which are inflated on the way to disk. */
+    static boolean isPrecompressed(String url) {
+        return hasSuffix(url, ".gz");
+    }
+
+    private static boolean hasSuffix(String url, String suffix) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        String path = parsed != null ? parsed.encodedPath() : url;
+        return path.toLowerCase().endsWith(suffix);
+    }
+
+    private static boolean isEncoded(Response response, String url) throws IOException {
+        String encoding = response.header("Content-Encoding");
+        if (encoding != null && !encoding.equalsIgnoreCase("identity") && !encoding.equalsIgnoreCase("gzip")) {
+            throw new IOException("Unsupported Content-Encoding " + encoding + " for " + url);
+        }
+        return "gzip".equalsIgnoreCase(encoding) || isPrecompressed(url);
+    }
+
+    /** Undoes the transfer encoding, then the artifact's own compression. */
+    private static InputStream decode(InputStream in, Response response, String url) throws IOException {
+        if ("gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (isPrecompressed(url)) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    private interface RequestFactory {
+        Request create(String url);
+    }
+
+    /** The response that won a race, and the mirror it came from. */
+    private static class Opened {
+        final String url;
+        final Call call;
+        final Response response;
+
+        Opened(String url, Call call, Response response) {
+            this.url = url;
+            this.call = call;
+            this.response = response;
+        }
+    }
+
+    /** What one raced call ended with: a response or an error. */
+    private static class Outcome {
+        final String url;
+        final Call call;
+        final long millis;
+        final Response response;
+        final IOException error;
+
+        Outcome(String url, Call call, long millis, Response response, IOException error) {
+            this.url = url;
+            this.call = call;
+            this.millis = millis;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Sends the request for the best-ranked mirrors at once and returns the
+     * first response worth reading (2xx, or 416 for a resume that was already
+     * complete). Only mirrors close to the best are raced, since a host known
+     * to be slow can still answer first; the rest are tried one by one once
+     * every raced mirror has failed. If every mirror answered with an error
+     * status, the last of those is returned for the caller to classify; if
+     * any failed outright, its error is thrown so the attempt can be retried.
+     * The returned call stays tracked, so {@link #cancel} can abort its body;
+     * the caller untracks it once the response is closed.
+     */
+    private Opened open(List<String> urls, RequestFactory factory) throws IOException {
+        if (urls.size() == 1) {
+            String url = urls.get(0);
+            Call call = track(client.newCall(factory.create(url)));
+            long start = System.nanoTime();
+            try {
+                Response response = call.execute();
+                if (isUsable(response)) {
+                    health.recordTtfb(url, (System.nanoTime() - start) / 1000000);
+                } else {
+                    health.recordFailure(url);
+                }
+                return new Opened(url, call, response);
+            } catch (IOException e) {
+                if (!cancelled) {
+                    health.recordFailure(url);
+                }
+                untrack(call);
+                throw e;
+            }
+        }
+
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        // Set once no more outcomes will be read; late responses are then closed
+        AtomicBoolean settled = new AtomicBoolean();
+        List<Call> calls = new ArrayList<>();
+        Outcome winner = null;
+        Outcome rejected = null;
+        IOException lastError = null;
+        int started = 0;
+        int finished = 0;
+        int width = 1;
+        double best = health.predictedMs(urls.get(0));
+        while (width < Math.min(RACE_WIDTH, urls.size())
+                && health.predictedMs(urls.get(width)) <= best * RACE_SLACK) {
+            width++;
+        }
+        try {
+            while (started < width) {
+                calls.add(enqueue(urls.get(started++), factory, outcomes, settled));
+            }
+            while (finished < started) {
+                Outcome outcome;
+                try {
+                    outcome = outcomes.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+                finished++;
+                if (outcome.response != null && isUsable(outcome.response)) {
+                    health.recordTtfb(outcome.url, outcome.millis);
+                    winner = outcome;
+                    return new Opened(outcome.url, outcome.call, outcome.response);
+                }
+                if (outcome.response != null) {
+                    health.recordFailure(outcome.url);
+                    if (rejected != null) {
+                        rejected.response.close();
+                    }
+                    rejected = outcome;
+                } else {
+                    if (!cancelled) {
+                        health.recordFailure(outcome.url);
+                    }
+                    lastError = outcome.error;
+                }
+                // Fall back to the next mirror only once every raced one has failed
+                if (finished == started && started < urls.size() && !cancelled) {
+                    calls.add(enqueue(urls.get(started++), factory, outcomes, settled));
+                }
+            }
+            checkCancelled();
+            if (lastError == null) {
+                winner = rejected;
+                return new Opened(rejected.url, rejected.call, rejected.response);
+            }
+            throw lastError;
+        } finally {
+            settled.set(true);
+            for (Call call : calls) {
+                if (winner == null || call != winner.call) {
+                    call.cancel();
+                    untrack(call);
+                }
+            }
+            if (rejected != null && rejected != winner) {
+                rejected.response.close();
+            }
+            closeAll(outcomes);
+        }
+    }
+
+    private Call enqueue(String url, RequestFactory factory, BlockingQueue<Outcome> outcomes,
+                         AtomicBoolean settled) {
+        Call call = track(client.newCall(factory.create(url)));
+        long start = System.nanoTime();
+        call.enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                long millis = (System.nanoTime() - start) / 1000000;
+                outcomes.add(new Outcome(url, call, millis, response, null));
+                if (settled.get()) {
+                    closeAll(outcomes);
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                outcomes.add(new Outcome(url, call, 0, null, e));
+            }
+        });
+        return call;
+    }
+
+    private static void closeAll(BlockingQueue<Outcome> outcomes) {
+        Outcome outcome;
+        while ((outcome = outcomes.poll()) != null) {
+            if (outcome.response != null) {
+                outcome.response.close();
+            }
+        }
+    }
+
+    private static boolean isUsable(Response response) {
+        return response.isSuccessful() || response.code() == 416;
+    }
+
+    private Call track(Call call) {
+        synchronized (activeCalls) {
+            activeCalls.add(call);
+        }
+        if (cancelled) {
+            call.cancel();
+        }
+        return call;
+    }
+
+    private void untrack(Call call) {
+        synchronized (activeCalls) {
+            activeCalls.remove(call);
+        }
+    }
+
+    static void ensureFreeSpace(File target, long needed) throws IOException {
+        if (needed <= 0) {
+            return;
+        }
+        File dir = target.getAbsoluteFile().getParentFile();
+        long existing = target.exists() ? target.length() : 0;
+        long usable = dir != null ? dir.getUsableSpace() + existing : Long.MAX_VALUE;
+        if (usable < needed + FREE_SPACE_MARGIN) {
+            throw new FatalDownloadException("Not enough free space: need " + needed + " bytes, "
+                    + usable + " available");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On-disk store for downloaded artifacts. Files are named after their
+ * content: the published SHA-256 when the manifest has one, otherwise a hash
+ * of the URL. The same file referenced by several manifest entries, a retried
+ * update or a rollback to an earlier version is therefore downloaded once.
+ *
+ * An index records when each file was last used. Once the store exceeds its
+ * byte budget the least recently used files are evicted, except those pinned
+ * by an update in progress. Files only appear under their final name once
+ * complete (see {@link ArtifactDownloader}), and opening the store removes
+ * leftovers that no download can resume.
+ */
+public class ArtifactStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String INDEX_FILE = "index.properties";
+    // Resumable partials older than this are not worth keeping
+    private static final long MAX_PARTIAL_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File dir;
+    private final File indexFile;
+    private final long maxBytes;
+    // Key -> last use, in access order (least recently used first)
+    private final LinkedHashMap<String, Long> lastUsed = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    public ArtifactStore(File dir, long maxBytes) {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_FILE);
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        loadIndex();
+        cleanup();
+    }
+
+    /**
+     * Returns the file {@code artifact} is (or will be) stored in, marks it as
+     * used now and pins it until {@link #release}.
+     */
+    public synchronized File acquire(Artifact artifact) {
+        String key = keyFor(artifact);
+        Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+        lastUsed.put(key, System.currentTimeMillis());
+        saveIndex();
+        return new File(dir, key);
+    }
+
+    /**
+     * Unpins a file from {@link #acquire}. It stays cached until evicted;
+     * call {@link #trim} afterwards to apply the budget.
+     */
+    public synchronized void release(File file) {
+        String key = file.getName();
+        Integer count = pins.get(key);
+        if (count == null || count <= 1) {
+            pins.remove(key);
+        } else {
+            pins.put(key, count - 1);
+        }
+    }
+
+    /** Evicts least recently used, unpinned files until the store fits its budget. */
+    public void trim() {
+        trimTo(maxBytes);
+    }
+
+    /** Like {@link #trim} with a smaller budget, e.g. 0 when the device is out of space. */
+    public synchronized void trimTo(long maxBytes) {
+        long total = 0;
+        for (String key : lastUsed.keySet()) {
+            total += sizeOf(key);
+        }
+        Iterator<String> it = lastUsed.keySet().iterator();
+        while (total > maxBytes && it.hasNext()) {
+            String key = it.next();
+            if (pins.containsKey(key)) {
+                continue;
+            }
+            total -= sizeOf(key);
+            ArtifactDownloader.discard(new File(dir, key));
+            it.remove();
+        }
+        saveIndex();
+    }
+
+    static String keyFor(Artifact artifact) {
+        if (artifact.sha256 != null && artifact.sha256.trim().matches("[0-9a-fA-F]{64}")) {
+            return artifact.sha256.trim().toLowerCase();
+        }
+        // Unverifiable content: keyed by where it came from, and never reused as complete
+        return "url-" + Digests.hex(Digests.sha256().digest(artifact.url.getBytes(UTF_8)));
+    }
+
+    private long sizeOf(String key) {
+        File file = new File(dir, key);
+        return file.length() + ArtifactDownloader.partFor(file).length();
+    }
+
+    /**
+     * Drops index entries whose files are gone and files no index entry or
+     * resumable download accounts for, then applies the budget.
+     */
+    private synchronized void cleanup() {
+        for (Iterator<String> it = lastUsed.keySet().iterator(); it.hasNext(); ) {
+            File file = new File(dir, it.next());
+            if (!file.exists() && !ArtifactDownloader.partFor(file).exists()) {
+                it.remove();
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(INDEX_FILE)) {
+                    continue;
+                }
+                int dot = name.indexOf('.');
+                String key = dot >= 0 ? name.substring(0, dot) : name;
+                String suffix = dot >= 0 ? name.substring(dot) : "";
+                File artifact = new File(dir, key);
+                File part = ArtifactDownloader.partFor(artifact);
+                boolean keep = false;
+                if (lastUsed.containsKey(key)) {
+                    if (suffix.isEmpty()) {
+                        keep = true;
+                    } else if (file.equals(part) || file.equals(DownloadState.sidecarFor(part))) {
+                        // Only a recent partial with a sidecar can be resumed
+                        keep = DownloadState.sidecarFor(part).exists()
+                                && now - part.lastModified() < MAX_PARTIAL_AGE_MS;
+                    } else if (file.equals(ArtifactDownloader.markerFor(artifact))) {
+                        keep = artifact.exists();
+                    }
+                }
+                // Anything else is an interrupted patch, temp file or unindexed leftover
+                if (!keep) {
+                    file.delete();
+                }
+            }
+        }
+        trim();
+    }
+
+    private void loadIndex() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(indexFile)) {
+            props.load(in);
+        } catch (IOException e) {
+            return; // Start empty; cleanup removes what the index no longer covers
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        for (String key : props.stringPropertyNames()) {
+            try {
+                entries.add(new AbstractMap.SimpleEntry<>(key, Long.parseLong(props.getProperty(key))));
+            } catch (NumberFormatException e) {
+                // Skip the damaged line
+            }
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.getValue(), b.getValue()));
+        for (Map.Entry<String, Long> entry : entries) {
+            lastUsed.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void saveIndex() {
+        Properties props = new Properties();
+        for (Map.Entry<String, Long> entry : lastUsed.entrySet()) {
+            props.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        } catch (IOException e) {
+            tmp.delete();
+            return; // Worst case the next start forgets some use times
+        }
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+        }
+    }
+}
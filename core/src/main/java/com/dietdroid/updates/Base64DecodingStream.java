@@ -0,0 +1,105 @@
+package com.dietdroid.updates;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes standard Base64 text as a stream, skipping the line breaks GitHub
+ * inserts every 60 characters. Lets the manifest be parsed straight from the
+ * contents-API {@code content} field without first materialising the decoded
+ * bytes or a second String.
+ */
+final class Base64DecodingStream extends InputStream {
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final CharSequence source;
+    private int position;
+    // Bytes decoded from the last quantum but not handed out yet
+    private final byte[] pending = new byte[3];
+    private int pendingPos;
+    private int pendingLen;
+    private boolean finished;
+
+    Base64DecodingStream(CharSequence source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pendingPos == pendingLen && !refill()) {
+            return -1;
+        }
+        return pending[pendingPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int start = off;
+        int end = off + len;
+        while (off < end) {
+            if (pendingPos == pendingLen && !refill()) {
+                break;
+            }
+            int n = Math.min(pendingLen - pendingPos, end - off);
+            System.arraycopy(pending, pendingPos, b, off, n);
+            pendingPos += n;
+            off += n;
+        }
+        return off == start ? -1 : off - start;
+    }
+
+    /** Decodes the next 4-character quantum into {@link #pending}. */
+    private boolean refill() throws IOException {
+        if (finished) {
+            return false;
+        }
+        int bits = 0;
+        int count = 0;
+        int padding = 0;
+        int length = source.length();
+        while (count < 4 && position < length) {
+            char c = source.charAt(position++);
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                continue;
+            }
+            int value;
+            if (c == '=') {
+                padding++;
+                value = 0;
+            } else if (padding > 0 || c >= DECODE.length || (value = DECODE[c]) < 0) {
+                throw new IOException("Invalid Base64 character at offset " + (position - 1));
+            }
+            bits = (bits << 6) | value;
+            count++;
+        }
+        if (count == 0) {
+            finished = true;
+            return false;
+        }
+        if (count < 4) {
+            throw new IOException("Truncated Base64 input");
+        }
+        pending[0] = (byte) (bits >> 16);
+        pending[1] = (byte) (bits >> 8);
+        pending[2] = (byte) bits;
+        pendingPos = 0;
+        pendingLen = 3 - padding;
+        if (padding > 0) {
+            finished = true;
+        }
+        return pendingLen > 0;
+    }
+}
@@ -0,0 +1,62 @@
+package com.dietdroid.updates;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cooperative cancellation for one unit of update work. Code that blocks on
+ * something external (an OkHttp call, a child process) registers a hook that
+ * aborts it; everything else polls {@link #throwIfCancelled} between steps.
+ */
+public class CancellationToken {
+    private final List<Runnable> hooks = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    /** Runs every registered hook once; later registrations run immediately. */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (hooks) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(hooks);
+            hooks.clear();
+        }
+        for (Runnable hook : toRun) {
+            hook.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    /**
+     * Registers {@code hook} to run on {@link #cancel}. Pass the returned
+     * handle to {@link #unregister} once the operation it aborts is over.
+     */
+    public Runnable register(Runnable hook) {
+        synchronized (hooks) {
+            if (!cancelled) {
+                hooks.add(hook);
+                return hook;
+            }
+        }
+        hook.run();
+        return hook;
+    }
+
+    public void unregister(Runnable hook) {
+        synchronized (hooks) {
+            hooks.remove(hook);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** SHA-256 helpers shared by the download and verification code. */
+public final class Digests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android and Java runtime must provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Feeds the first {@code length} bytes of {@code file} into {@code digest}. */
+    public static void update(MessageDigest digest, File file, long length, byte[] buffer) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(file + " is shorter than " + length + " bytes");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    public static String sha256Hex(File file) throws IOException {
+        MessageDigest digest = sha256();
+        update(digest, file, file.length(), new byte[64 * 1024]);
+        return hex(digest.digest());
+    }
+
+    public static String hex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /** Case-insensitive comparison of two hex digests; false if either is null. */
+    public static boolean matches(String expected, String actual) {
+        return expected != null && actual != null && expected.trim().equalsIgnoreCase(actual);
+    }
+}
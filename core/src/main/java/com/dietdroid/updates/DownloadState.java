@@ -0,0 +1,99 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Sidecar describing a partially downloaded artifact: where it came from, the
+ * validator the server sent for it and how many bytes are safely on disk.
+ * Stored next to the partial file so a download can resume after a dropped
+ * connection or process death.
+ */
+class DownloadState {
+    private static final String SUFFIX = ".download";
+
+    String url;
+    String etag;
+    String lastModified;
+    /** The artifact's published digest, which lets another mirror continue the file. */
+    String sha256;
+    long bytesWritten;
+    long totalBytes = -1;
+
+    static File sidecarFor(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+
+    static DownloadState load(File sidecar) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(sidecar)) {
+            props.load(in);
+            DownloadState state = new DownloadState();
+            state.url = props.getProperty("url");
+            state.etag = props.getProperty("etag");
+            state.lastModified = props.getProperty("last_modified");
+            state.sha256 = props.getProperty("sha256");
+            state.bytesWritten = Long.parseLong(props.getProperty("bytes_written", "0"));
+            state.totalBytes = Long.parseLong(props.getProperty("total_bytes", "-1"));
+            return state;
+        } catch (IOException | NumberFormatException e) {
+            // A torn sidecar just means we start over
+            return null;
+        }
+    }
+
+    void save(File sidecar) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        if (etag != null) {
+            props.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            props.setProperty("last_modified", lastModified);
+        }
+        if (sha256 != null) {
+            props.setProperty("sha256", sha256);
+        }
+        props.setProperty("bytes_written", Long.toString(bytesWritten));
+        props.setProperty("total_bytes", Long.toString(totalBytes));
+
+        // Write then rename so a crash never leaves a half-written sidecar behind
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Could not write " + sidecar);
+        }
+    }
+
+    /**
+     * Value for {@code If-Range}. Only strong ETags are allowed there, so fall
+     * back to Last-Modified for weak ones; null means the server cannot be
+     * asked to continue the partial file conditionally.
+     */
+    String ifRangeValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * True if the partial file is worth keeping: either the same server can
+     * confirm it is unchanged, or the final digest check will catch a
+     * mismatch whichever mirror supplies the rest.
+     */
+    boolean isResumable() {
+        return ifRangeValidator() != null || sha256 != null;
+    }
+}
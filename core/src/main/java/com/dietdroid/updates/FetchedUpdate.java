@@ -0,0 +1,48 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+
+/** Downloaded artifacts of one {@link UpdateEntry}, ready to install. */
+public class FetchedUpdate {
+    public final UpdateEntry update;
+    /** Downloaded APK, or null if the update has none or it was staged instead. */
+    public final File apkFile;
+    /** APK already streamed into the platform installer, or null. */
+    public final StagedApk stagedApk;
+    /** Downloaded script, or null if the update has none. */
+    public final File scriptFile;
+    private final ArtifactStore store;
+
+    public FetchedUpdate(UpdateEntry update, File apkFile, StagedApk stagedApk, File scriptFile,
+                         ArtifactStore store) {
+        this.update = update;
+        this.apkFile = apkFile;
+        this.stagedApk = stagedApk;
+        this.scriptFile = scriptFile;
+        this.store = store;
+    }
+
+    /**
+     * Hands the files back to the store once installed; they stay cached
+     * for a retry or rollback until the store evicts them.
+     */
+    public void release() {
+        if (apkFile != null) {
+            store.release(apkFile);
+        }
+        if (scriptFile != null) {
+            store.release(scriptFile);
+        }
+    }
+
+    /**
+     * Releases an update that will not be installed now: a staged APK is
+     * abandoned, downloaded files are left for a later attempt.
+     */
+    public void discard() {
+        if (stagedApk != null) {
+            stagedApk.abandon();
+        }
+        release();
+    }
+}
@@ -0,0 +1,136 @@
+package com.dietdroid.updates;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Outcome of installing an APK, from either {@code pm install} output or a
+ * PackageInstaller session status. {@link #status} groups the many
+ * INSTALL_FAILED_* codes by what the caller can do about them; {@link #code}
+ * keeps the exact code for logs.
+ */
+public class InstallResult {
+    // pm prints e.g. "Failure [INSTALL_FAILED_INSUFFICIENT_STORAGE: ...]"
+    private static final Pattern FAILURE_CODE =
+            Pattern.compile("\\b(INSTALL_(?:FAILED|PARSE_FAILED)_[A-Z0-9_]+)(?::\\s*([^\\]\\n]*))?");
+
+    public enum Status {
+        SUCCESS,
+        /** Not enough space to stage or install; freeing space may help. */
+        INSUFFICIENT_STORAGE,
+        /** Signature or shared-uid mismatch with the installed package. */
+        INCOMPATIBLE,
+        /** The APK is older than the installed version. */
+        DOWNGRADE,
+        /** The file is not a valid APK for this device. */
+        INVALID_APK,
+        /** The user or the system cancelled the install. */
+        ABORTED,
+        FAILED
+    }
+
+    /** Thrown by installers; carries the typed result. */
+    public static class InstallException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final InstallResult result;
+
+        public InstallException(InstallResult result) {
+            super("Install failed: " + result);
+            this.result = result;
+        }
+    }
+
+    public final Status status;
+    /** The INSTALL_FAILED_* code, if the installer gave one. */
+    public final String code;
+    public final String message;
+
+    public InstallResult(Status status, String code, String message) {
+        this.status = status;
+        this.code = code;
+        this.message = message;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    /**
+     * Parses the output of {@code pm install}. Its exit code is not reliable
+     * across releases (older ones exit 0 on failure), so the printed result
+     * decides and the exit code only breaks ties.
+     */
+    public static InstallResult parsePm(int exitCode, String stdout, String stderr) {
+        String output = stdout + "\n" + stderr;
+        Matcher matcher = FAILURE_CODE.matcher(output);
+        if (matcher.find()) {
+            String code = matcher.group(1);
+            return new InstallResult(statusForCode(code), code, trimToNull(matcher.group(2)));
+        }
+        for (String line : stdout.split("\n")) {
+            if (line.trim().equals("Success")) {
+                return new InstallResult(Status.SUCCESS, null, null);
+            }
+        }
+        String message = firstLine(stderr);
+        if (message == null) {
+            message = firstLine(stdout);
+        }
+        if (message == null) {
+            message = "pm exited with " + exitCode;
+        }
+        return new InstallResult(Status.FAILED, null, message);
+    }
+
+    static Status statusForCode(String code) {
+        if (code.equals("INSTALL_FAILED_INSUFFICIENT_STORAGE")
+                || code.equals("INSTALL_FAILED_MEDIA_UNAVAILABLE")) {
+            return Status.INSUFFICIENT_STORAGE;
+        }
+        if (code.equals("INSTALL_FAILED_UPDATE_INCOMPATIBLE")
+                || code.equals("INSTALL_FAILED_SHARED_USER_INCOMPATIBLE")
+                || code.equals("INSTALL_FAILED_INCONSISTENT_CERTIFICATES")
+                || code.equals("INSTALL_PARSE_FAILED_INCONSISTENT_CERTIFICATES")) {
+            return Status.INCOMPATIBLE;
+        }
+        if (code.equals("INSTALL_FAILED_VERSION_DOWNGRADE")) {
+            return Status.DOWNGRADE;
+        }
+        if (code.equals("INSTALL_FAILED_ABORTED") || code.equals("INSTALL_FAILED_USER_RESTRICTED")) {
+            return Status.ABORTED;
+        }
+        if (code.startsWith("INSTALL_PARSE_FAILED_") || code.equals("INSTALL_FAILED_INVALID_APK")
+                || code.equals("INSTALL_FAILED_OLDER_SDK") || code.equals("INSTALL_FAILED_NO_MATCHING_ABIS")
+                || code.equals("INSTALL_FAILED_MISSING_SPLIT")) {
+            return Status.INVALID_APK;
+        }
+        return Status.FAILED;
+    }
+
+    private static String firstLine(String text) {
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                return line.trim();
+            }
+        }
+        return null;
+    }
+
+    private static String trimToNull(String text) {
+        return text == null || text.trim().isEmpty() ? null : text.trim();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(status.name());
+        if (code != null) {
+            text.append(" (").append(code).append(')');
+        }
+        if (message != null) {
+            text.append(": ").append(message);
+        }
+        return text.toString();
+    }
+}
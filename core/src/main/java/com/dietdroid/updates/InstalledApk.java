@@ -0,0 +1,19 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+
+/** An APK currently installed on the device, usable as the base for a patch. */
+public class InstalledApk {
+    public final String versionName;
+    public final File file;
+
+    public InstalledApk(String versionName, File file) {
+        this.versionName = versionName;
+        this.file = file;
+    }
+
+    public interface Locator {
+        /** @return the installed APK of {@code packageName}, or null if it is not installed */
+        InstalledApk find(String packageName);
+    }
+}
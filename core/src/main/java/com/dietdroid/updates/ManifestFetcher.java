@@ -0,0 +1,194 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches system_update.json through the GitHub contents API with conditional
+ * requests. It asks for the raw file rather than the JSON envelope, whose
+ * Base64 adds a third, and OkHttp negotiates gzip on top. Servers that send
+ * the envelope anyway still work.
+ *
+ * The last response body and its ETag/Last-Modified are kept on disk, so an
+ * unchanged manifest costs one 304 round trip (which GitHub does not count
+ * against the rate limit), and the parsed manifest is memoised per ETag so it
+ * is not parsed again either.
+ */
+public class ManifestFetcher {
+    private static final String BODY_FILE = "manifest.json";
+    private static final String META_FILE = "manifest.properties";
+    // GitHub's media type for a file's bare contents
+    private static final String RAW_MEDIA_TYPE = "application/vnd.github.raw+json";
+
+    // Parsed manifest for the ETag on disk, shared by every fetcher in the process
+    private static final Object MEMO_LOCK = new Object();
+    private static String memoKey;
+    private static UpdateManifest memoManifest;
+
+    public static class Result {
+        public final UpdateManifest manifest;
+        public final String etag;
+        /** True if the server answered 304 and the cached manifest was used. */
+        public final boolean notModified;
+
+        Result(UpdateManifest manifest, String etag, boolean notModified) {
+            this.manifest = manifest;
+            this.etag = etag;
+            this.notModified = notModified;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final File bodyFile;
+    private final File metaFile;
+
+    public ManifestFetcher(OkHttpClient client, File cacheDir) {
+        this.client = client;
+        cacheDir.mkdirs();
+        this.bodyFile = new File(cacheDir, BODY_FILE);
+        this.metaFile = new File(cacheDir, META_FILE);
+    }
+
+    public Result fetch(String url) throws IOException {
+        return fetch(url, new CancellationToken());
+    }
+
+    /** @param token cancelling it aborts the request in flight */
+    public Result fetch(String url, CancellationToken token) throws IOException {
+        Properties meta = loadMeta();
+        boolean haveCached = bodyFile.isFile() && url.equals(meta.getProperty("url"));
+
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .header("Accept", RAW_MEDIA_TYPE);
+        if (haveCached) {
+            String etag = meta.getProperty("etag");
+            String lastModified = meta.getProperty("last_modified");
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        Call call = client.newCall(builder.build());
+        Runnable abort = token.register(call::cancel);
+        try (Response response = call.execute()) {
+            if (response.code() == 304 && haveCached) {
+                return new Result(parseCached(meta), meta.getProperty("etag"), true);
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " for " + url);
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response body for " + url);
+            }
+
+            // A temp file per call: MainActivity and UpdateService may fetch at the same time
+            File tmp = File.createTempFile(BODY_FILE, ".tmp", bodyFile.getParentFile());
+            try {
+                writeBody(body, tmp);
+                // Parsed before anything is replaced, so a malformed 200 never becomes the cached copy
+                UpdateManifest manifest = parse(tmp);
+                if (!tmp.renameTo(bodyFile)) {
+                    throw new IOException("Could not store manifest");
+                }
+                String etag = response.header("ETag");
+                Properties updated = new Properties();
+                updated.setProperty("url", url);
+                if (etag != null) {
+                    updated.setProperty("etag", etag);
+                }
+                String lastModified = response.header("Last-Modified");
+                if (lastModified != null) {
+                    updated.setProperty("last_modified", lastModified);
+                }
+                saveMeta(updated);
+                remember(memoKey(updated), manifest);
+                return new Result(manifest, etag, false);
+            } finally {
+                tmp.delete();
+            }
+        } finally {
+            token.unregister(abort);
+        }
+    }
+
+    private UpdateManifest parseCached(Properties meta) throws IOException {
+        String key = memoKey(meta);
+        synchronized (MEMO_LOCK) {
+            if (key.equals(memoKey)) {
+                return memoManifest;
+            }
+        }
+        UpdateManifest manifest = parse(bodyFile);
+        remember(key, manifest);
+        return manifest;
+    }
+
+    private static String memoKey(Properties meta) {
+        return meta.getProperty("url") + '\n' + meta.getProperty("etag") + '\n' + meta.getProperty("last_modified");
+    }
+
+    private static void remember(String key, UpdateManifest manifest) {
+        synchronized (MEMO_LOCK) {
+            memoKey = key;
+            memoManifest = manifest;
+        }
+    }
+
+    private static UpdateManifest parse(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return ManifestParser.parseDocument(in);
+        }
+    }
+
+    private static void writeBody(ResponseBody body, File file) throws IOException {
+        try (InputStream in = body.byteStream(); OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private Properties loadMeta() {
+        Properties props = new Properties();
+        if (metaFile.isFile()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                props.load(in);
+            } catch (IOException e) {
+                // Treat as no cache; the next 200 rewrites it
+            }
+        }
+        return props;
+    }
+
+    private void saveMeta(Properties props) throws IOException {
+        File tmp = File.createTempFile(META_FILE, ".tmp", metaFile.getParentFile());
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(metaFile)) {
+            tmp.delete();
+            throw new IOException("Could not store manifest metadata");
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.dietdroid.updates;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+
+/**
+ * Single-pass streaming parser for system_update.json. Binds tokens straight
+ * onto {@link UpdateManifest}/{@link UpdateEntry} instead of building Gson
+ * trees, and bounds what it keeps from free-form text so a manifest with
+ * very long changelogs cannot balloon the heap.
+ */
+public final class ManifestParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The UI shows three lines; keep a few more for logs and notifications
+    static final int MAX_CHANGELOG_ITEMS = 10;
+    static final int MAX_TEXT_LENGTH = 1024;
+    static final int MAX_MIRRORS = 8;
+
+    private ManifestParser() {
+    }
+
+    /**
+     * Parses a GitHub contents-API response, decoding its Base64
+     * {@code content} field as a stream.
+     */
+    public static UpdateManifest parseEnvelope(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        try {
+            String content = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("content".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    content = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (content == null) {
+                throw new IOException("Contents API response has no content field");
+            }
+            return parse(new Base64DecodingStream(content));
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed contents API response", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Parses the raw manifest JSON. */
+    public static UpdateManifest parse(InputStream in) throws IOException {
+        return parse(in, false);
+    }
+
+    /**
+     * Parses either the raw manifest or a contents-API response wrapping it,
+     * for servers that may ignore a request for the raw media type.
+     */
+    public static UpdateManifest parseDocument(InputStream in) throws IOException {
+        return parse(in, true);
+    }
+
+    private static UpdateManifest parse(InputStream in, boolean allowEnvelope) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        try {
+            return readManifest(reader, allowEnvelope);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed manifest", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static UpdateManifest readManifest(JsonReader reader, boolean allowEnvelope) throws IOException {
+        String envelopeContent = null;
+        String latestVersion = null;
+        String requiredAndroidVersion = null;
+        long downloadWindowSeconds = 0;
+        LinkedHashMap<String, UpdateEntry> updates = null;
+        // Legacy manifests keep the update fields at the top level
+        UpdateEntry legacyEntry = new UpdateEntry();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "latest_version":
+                    latestVersion = readString(reader);
+                    break;
+                case "updates":
+                    updates = readUpdates(reader);
+                    break;
+                case "required_android_version":
+                    requiredAndroidVersion = readString(reader);
+                    break;
+                case "download_window_seconds":
+                    downloadWindowSeconds = Math.max(0, readLong(reader));
+                    break;
+                case "version":
+                    legacyEntry.version = readString(reader);
+                    break;
+                case "content":
+                    if (allowEnvelope && reader.peek() == JsonToken.STRING) {
+                        envelopeContent = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    if (!readEntryField(reader, name, legacyEntry)) {
+                        reader.skipValue();
+                    }
+            }
+        }
+        reader.endObject();
+
+        if (envelopeContent != null && latestVersion == null && legacyEntry.version == null) {
+            return parse(new Base64DecodingStream(envelopeContent), false);
+        }
+        if (latestVersion != null && updates != null) {
+            return new UpdateManifest(latestVersion, updates, requiredAndroidVersion,
+                    downloadWindowSeconds * 1000, false);
+        }
+        if (legacyEntry.version != null) {
+            LinkedHashMap<String, UpdateEntry> single = new LinkedHashMap<>();
+            single.put(legacyEntry.version, finish(legacyEntry));
+            return new UpdateManifest(legacyEntry.version, single, requiredAndroidVersion,
+                    downloadWindowSeconds * 1000, true);
+        }
+        throw new IOException("Manifest has neither latest_version/updates nor version");
+    }
+
+    private static LinkedHashMap<String, UpdateEntry> readUpdates(JsonReader reader) throws IOException {
+        LinkedHashMap<String, UpdateEntry> updates = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String version = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            UpdateEntry entry = new UpdateEntry();
+            entry.version = version;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (!readEntryField(reader, name, entry)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            updates.put(version, finish(entry));
+        }
+        reader.endObject();
+        return updates;
+    }
+
+    /** @return false if {@code name} is not an update field and still needs skipping */
+    private static boolean readEntryField(JsonReader reader, String name, UpdateEntry entry) throws IOException {
+        switch (name) {
+            case "script_url":
+                script(entry).url = readString(reader);
+                return true;
+            case "script_sha256":
+                script(entry).sha256 = readString(reader);
+                return true;
+            case "script_size":
+                script(entry).size = readLong(reader);
+                return true;
+            case "script_mirrors":
+                readMirrors(reader, script(entry));
+                return true;
+            case "apk_url":
+                apk(entry).url = readString(reader);
+                return true;
+            case "apk_sha256":
+                apk(entry).sha256 = readString(reader);
+                return true;
+            case "apk_size":
+                apk(entry).size = readLong(reader);
+                return true;
+            case "apk_mirrors":
+                readMirrors(reader, apk(entry));
+                return true;
+            case "apk_package":
+                entry.apkPackage = readString(reader);
+                return true;
+            case "patches":
+                readPatches(reader, entry);
+                return true;
+            case "changelog":
+                readChangelog(reader, entry);
+                return true;
+            case "description":
+                entry.description = truncate(readString(reader));
+                return true;
+            case "file_size":
+                entry.fileSize = readString(reader);
+                return true;
+            case "forced":
+                entry.forced = readBoolean(reader);
+                return true;
+            case "automatic":
+                entry.automatic = readBoolean(reader);
+                return true;
+            case "rollout_percent":
+                entry.rolloutPercent = Math.max(0, Math.min(100, readDouble(reader, 100)));
+                return true;
+            case "rollout_start":
+                // Epoch seconds, like the Unix timestamps the publishing scripts emit
+                entry.rolloutStartMs = Math.max(0, readLong(reader)) * 1000;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** "patches": {"1.1": {"url": ..., "sha256": ..., "size": ..., "mirrors": [...]}, ...} */
+    private static void readPatches(JsonReader reader, UpdateEntry entry) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String fromVersion = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            Artifact patch = new Artifact();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "url":
+                        patch.url = readString(reader);
+                        break;
+                    case "sha256":
+                        patch.sha256 = readString(reader);
+                        break;
+                    case "size":
+                        patch.size = readLong(reader);
+                        break;
+                    case "mirrors":
+                        readMirrors(reader, patch);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (patch.url != null) {
+                entry.patches.put(fromVersion, patch);
+            }
+        }
+        reader.endObject();
+    }
+
+    private static Artifact apk(UpdateEntry entry) {
+        if (entry.apk == null) {
+            entry.apk = new Artifact();
+        }
+        return entry.apk;
+    }
+
+    private static Artifact script(UpdateEntry entry) {
+        if (entry.script == null) {
+            entry.script = new Artifact();
+        }
+        return entry.script;
+    }
+
+    /** Drops artifacts that got integrity fields but no URL. */
+    private static UpdateEntry finish(UpdateEntry entry) {
+        if (entry.apk != null && entry.apk.url == null) {
+            entry.apk = null;
+        }
+        if (entry.script != null && entry.script.url == null) {
+            entry.script = null;
+        }
+        return entry;
+    }
+
+    private static void readChangelog(JsonReader reader, UpdateEntry entry) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (entry.changelog.size() < MAX_CHANGELOG_ITEMS && reader.peek() == JsonToken.STRING) {
+                entry.changelog.add(truncate(reader.nextString()));
+            } else {
+                // skipValue() does not allocate the string
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+
+    /** "apk_mirrors": ["https://...", ...], the same bytes as the main URL */
+    private static void readMirrors(JsonReader reader, Artifact artifact) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (artifact.mirrors.size() < MAX_MIRRORS && reader.peek() == JsonToken.STRING) {
+                artifact.mirrors.add(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static long readLong(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return Long.parseLong(reader.nextString().trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        reader.skipValue();
+        return -1;
+    }
+
+    private static double readDouble(JsonReader reader, double fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                double value = Double.parseDouble(reader.nextString().trim());
+                return Double.isNaN(value) ? fallback : value;
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
+    }
+
+    private static String truncate(String text) {
+        if (text == null || text.length() <= MAX_TEXT_LENGTH) {
+            return text;
+        }
+        return text.substring(0, MAX_TEXT_LENGTH);
+    }
+}
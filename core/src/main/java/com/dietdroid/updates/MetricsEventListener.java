@@ -0,0 +1,147 @@
+package com.dietdroid.updates;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Records per-call HTTP timings into {@link UpdateMetrics}: DNS, TCP connect,
+ * TLS handshake, time to first byte and total call time (all in ms), plus
+ * body throughput for downloads large enough to measure it. Calls served
+ * from a pooled connection record no DNS/connect/TLS samples, which is
+ * itself worth seeing in the counts. Calls through an OkHttp cache are
+ * counted as hits, misses and conditional hits.
+ */
+public class MetricsEventListener extends EventListener {
+    // Bodies smaller than this finish too fast for a meaningful rate
+    private static final long MIN_THROUGHPUT_BYTES = 64 * 1024;
+
+    public static class Factory implements EventListener.Factory {
+        private final UpdateMetrics metrics;
+
+        public Factory(UpdateMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new MetricsEventListener(metrics);
+        }
+    }
+
+    private final UpdateMetrics metrics;
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private long bodyStart;
+
+    MetricsEventListener(UpdateMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+        metrics.increment("http.calls");
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+        metrics.record("http.dns_ms", millisSince(dnsStart));
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        metrics.record("http.tls_ms", millisSince(secureConnectStart));
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+        metrics.record("http.connect_ms", millisSince(connectStart));
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol,
+                              IOException e) {
+        metrics.increment("http.connect_failures");
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        metrics.record("http.ttfb_ms", millisSince(callStart));
+        if (response.code() == 304) {
+            metrics.increment("http.not_modified");
+        }
+    }
+
+    // A response served from OkHttp's cache never reaches responseHeadersEnd, so hits are counted
+    // here. A conditional hit that the server confirms with a 304 fires cacheHit as well.
+
+    @Override
+    public void cacheHit(Call call, Response response) {
+        metrics.increment("http.cache_hits");
+    }
+
+    @Override
+    public void cacheMiss(Call call) {
+        metrics.increment("http.cache_misses");
+    }
+
+    @Override
+    public void cacheConditionalHit(Call call, Response cachedResponse) {
+        metrics.increment("http.cache_conditional_hits");
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        bodyStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        metrics.add("http.bytes", byteCount);
+        long elapsedMs = millisSince(bodyStart);
+        if (byteCount >= MIN_THROUGHPUT_BYTES && elapsedMs > 0) {
+            metrics.record("http.throughput_kbps", byteCount * 1000 / 1024 / elapsedMs);
+        }
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        metrics.record("http.call_ms", millisSince(callStart));
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        // Losers of a mirror race are cancelled on purpose
+        metrics.increment(call.isCanceled() ? "http.cancelled" : "http.failures");
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
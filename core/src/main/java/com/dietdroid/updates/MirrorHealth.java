@@ -0,0 +1,184 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Remembers how well each mirror host has served downloads: smoothed time to
+ * first byte, smoothed throughput and recent failures. {@link #rank} orders
+ * an artifact's URLs by the download time these predict, so a host that is
+ * slow or throttled from where the device sits drops behind the others and
+ * stays there across runs.
+ */
+public class MirrorHealth {
+    // Newer samples weigh this much against the history
+    private static final double SMOOTHING = 0.3;
+    // Unknown hosts are assumed to be ordinary, so they still get tried
+    private static final double DEFAULT_TTFB_MS = 500;
+    private static final double DEFAULT_BYTES_PER_SECOND = 1024 * 1024;
+    // Scores compare the predicted time to fetch this much
+    private static final double REFERENCE_BYTES = 4 * 1024 * 1024;
+
+    private final File file;
+    // Guarded by this
+    private final Map<String, Host> hosts = new HashMap<>();
+    private boolean dirty;
+
+    private static class Host {
+        double ttfbMs = -1;
+        double bytesPerSecond = -1;
+        /** Decays by half on every success. */
+        double failures;
+
+        double predictedMs() {
+            double ttfb = ttfbMs >= 0 ? ttfbMs : DEFAULT_TTFB_MS;
+            double rate = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_BYTES_PER_SECOND;
+            return (ttfb + REFERENCE_BYTES * 1000 / rate) * (1 + failures);
+        }
+    }
+
+    /** @param file where scores are kept between runs, or null for memory only */
+    public MirrorHealth(File file) {
+        this.file = file;
+        load();
+    }
+
+    public synchronized void recordTtfb(String url, long millis) {
+        Host host = host(url);
+        host.ttfbMs = smooth(host.ttfbMs, millis);
+        host.failures /= 2;
+        dirty = true;
+    }
+
+    public synchronized void recordThroughput(String url, long bytesPerSecond) {
+        Host host = host(url);
+        host.bytesPerSecond = smooth(host.bytesPerSecond, bytesPerSecond);
+        dirty = true;
+    }
+
+    public synchronized void recordFailure(String url) {
+        host(url).failures += 1;
+        dirty = true;
+    }
+
+    /** {@code urls} ordered from most to least promising; ties keep manifest order. */
+    public synchronized List<String> rank(List<String> urls) {
+        List<String> ranked = new ArrayList<>(urls);
+        Map<String, Double> predicted = new HashMap<>();
+        for (String url : urls) {
+            predicted.put(url, predictedMs(url));
+        }
+        Collections.sort(ranked, (a, b) -> Double.compare(predicted.get(a), predicted.get(b)));
+        return ranked;
+    }
+
+    /** Predicted time to fetch a reference-sized file from {@code url}'s host; only useful for comparing. */
+    public synchronized double predictedMs(String url) {
+        Host host = hosts.get(hostOf(url));
+        return host != null ? host.predictedMs() : new Host().predictedMs();
+    }
+
+    /** Writes the scores if anything changed since the last save. */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        Properties props = new Properties();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+                Host host = entry.getValue();
+                props.setProperty(entry.getKey() + ".ttfb_ms", String.valueOf(host.ttfbMs));
+                props.setProperty(entry.getKey() + ".bytes_per_second", String.valueOf(host.bytesPerSecond));
+                props.setProperty(entry.getKey() + ".failures", String.valueOf(host.failures));
+            }
+            dirty = false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        } catch (IOException e) {
+            tmp.delete();
+            return; // Scores are advisory; the next save tries again
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private Host host(String url) {
+        String key = hostOf(url);
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host();
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    static String hostOf(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        return parsed != null ? parsed.host() + ":" + parsed.port() : url;
+    }
+
+    private static double smooth(double previous, double sample) {
+        return previous < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * previous;
+    }
+
+    private void load() {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return; // Start from scratch
+        }
+        for (String name : props.stringPropertyNames()) {
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(props.getProperty(name));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String key = name.substring(0, dot);
+            Host host = hosts.get(key);
+            if (host == null) {
+                host = new Host();
+                hosts.put(key, host);
+            }
+            switch (name.substring(dot + 1)) {
+                case "ttfb_ms":
+                    host.ttfbMs = value;
+                    break;
+                case "bytes_per_second":
+                    host.bytesPerSecond = value;
+                    break;
+                case "failures":
+                    host.failures = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
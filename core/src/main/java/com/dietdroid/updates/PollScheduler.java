@@ -0,0 +1,78 @@
+package com.dietdroid.updates;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before the next background update check. The
+ * interval starts at {@code baseMs}, doubles every time the manifest comes
+ * back unchanged or the check fails, and is capped at {@code maxMs}; a
+ * changed manifest resets it. Every delay is spread by +/- 25% so devices
+ * that booted or failed together do not keep checking in lockstep. The
+ * current interval can be saved with {@link #intervalMs()} and restored
+ * through the constructor, for callers that do not stay in memory between
+ * checks.
+ */
+public class PollScheduler {
+    private static final double JITTER = 0.25;
+
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+    private long intervalMs;
+
+    public PollScheduler(long baseMs, long maxMs) {
+        this(baseMs, maxMs, baseMs);
+    }
+
+    /** @param intervalMs a value from {@link #intervalMs()}; clamped to the base and maximum */
+    public PollScheduler(long baseMs, long maxMs, long intervalMs) {
+        this(baseMs, maxMs, intervalMs, new Random());
+    }
+
+    PollScheduler(long baseMs, long maxMs, Random random) {
+        this(baseMs, maxMs, baseMs, random);
+    }
+
+    PollScheduler(long baseMs, long maxMs, long intervalMs, Random random) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+        this.random = random;
+        this.intervalMs = Math.max(baseMs, Math.min(maxMs, intervalMs));
+    }
+
+    /** The interval the last delay was drawn around. */
+    public long intervalMs() {
+        return intervalMs;
+    }
+
+    /** Delay before the first check: anywhere in one base interval. */
+    public long firstDelay() {
+        return (long) (random.nextDouble() * baseMs);
+    }
+
+    /** The manifest changed: check again soon in case a fix follows. */
+    public long onChanged() {
+        intervalMs = baseMs;
+        return jittered(intervalMs);
+    }
+
+    /** Nothing new (a 304 or the same versions): back off. */
+    public long onUnchanged() {
+        return backOff();
+    }
+
+    /** The check failed: back off so an outage or rate limit is not made worse. */
+    public long onError() {
+        return backOff();
+    }
+
+    private long backOff() {
+        intervalMs = Math.min(maxMs, intervalMs * 2);
+        return jittered(intervalMs);
+    }
+
+    private long jittered(long delay) {
+        double factor = 1 + JITTER * (2 * random.nextDouble() - 1);
+        return (long) (delay * factor);
+    }
+}
@@ -0,0 +1,240 @@
+package com.dietdroid.updates;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects progress from download and install threads and hands it to a
+ * {@link Sink} at a fixed frame rate. Producers only update fields under a
+ * lock, so a script printing thousands of lines a second is never held up by
+ * the UI, and the UI gets at most one {@link ProgressSnapshot} per frame.
+ *
+ * Phases and transfers belong to a step, one update of a chain. A frame
+ * counts only the bytes of the step its phase is about, so the next step's
+ * prefetch does not show up under "Installing..." and is not lost when its
+ * own phase starts.
+ *
+ * The most recent lines of script output are kept in a bounded ring buffer
+ * that is written to a log file every few seconds and on close.
+ */
+public class ProgressChannel implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final long FRAME_INTERVAL_MS = 100;
+    static final int MAX_LINES = 1000;
+    private static final long PERSIST_INTERVAL_MS = 2000;
+    // Rate samples closer together than this are too noisy to use
+    private static final long RATE_SAMPLE_MS = 500;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    public interface Sink {
+        /** Called on the channel's timer thread, at most once per frame. */
+        void onFrame(ProgressSnapshot snapshot);
+    }
+
+    private final Sink sink;
+    private final File logFile;
+    private final ScheduledExecutorService ticker;
+
+    // Guarded by this
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    // Step, then transfer name, to done and total bytes
+    private final Map<String, Map<String, long[]>> transfers = new LinkedHashMap<>();
+    private String step;
+    private String phase;
+    private String lastLine;
+    private boolean dirty;
+    private boolean linesDirty;
+    private long lastPersist;
+    private long sampleTime;
+    private long sampleBytes;
+    private double bytesPerSecond;
+
+    /** @param logFile where the ring buffer of output lines is persisted, or null */
+    public ProgressChannel(Sink sink, File logFile) {
+        this.sink = sink;
+        this.logFile = logFile;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ProgressChannel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, FRAME_INTERVAL_MS, FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new phase of {@code step}. Within a step, the byte counters of
+     * the previous phase are dropped; moving to another step drops the old
+     * step's counters and its last line of output, and keeps whatever the new
+     * one has fetched already.
+     */
+    public synchronized void setPhase(String step, String phase) {
+        if (step.equals(this.step)) {
+            transfers.remove(step);
+        } else {
+            if (this.step != null) {
+                transfers.remove(this.step);
+            }
+            // The previous step's script output says nothing about this one
+            lastLine = null;
+        }
+        this.step = step;
+        this.phase = phase;
+        // Start the rate over from the bytes the new phase begins with
+        sampleTime = 0;
+        bytesPerSecond = 0;
+        dirty = true;
+    }
+
+    /** Reports progress of one of possibly several concurrent transfers of {@code step}. */
+    public synchronized void onBytes(String step, String transfer, long done, long total) {
+        Map<String, long[]> stepTransfers = transfers.get(step);
+        if (stepTransfers == null) {
+            stepTransfers = new LinkedHashMap<>();
+            transfers.put(step, stepTransfers);
+        }
+        long[] counters = stepTransfers.get(transfer);
+        if (counters == null) {
+            stepTransfers.put(transfer, new long[] {done, total});
+        } else {
+            counters[0] = done;
+            counters[1] = total;
+        }
+        // Another step's prefetch changes nothing on screen yet
+        dirty |= step.equals(this.step);
+    }
+
+    public synchronized void appendLine(String line) {
+        if (lines.size() == MAX_LINES) {
+            lines.removeFirst();
+        }
+        lines.addLast(line);
+        lastLine = line;
+        linesDirty = true;
+        dirty = true;
+    }
+
+    /** The buffered output lines, oldest first. */
+    public synchronized List<String> lines() {
+        return new ArrayList<>(lines);
+    }
+
+    /** Delivers the final frame and writes the log. */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        try {
+            ticker.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        emit(System.currentTimeMillis());
+        persist();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        emit(now);
+        boolean persistDue;
+        synchronized (this) {
+            persistDue = linesDirty && now - lastPersist >= PERSIST_INTERVAL_MS;
+        }
+        if (persistDue) {
+            persist();
+        }
+    }
+
+    private void emit(long now) {
+        ProgressSnapshot snapshot;
+        synchronized (this) {
+            Map<String, long[]> current = step != null ? transfers.get(step) : null;
+            long done = 0;
+            long total = 0;
+            if (current != null) {
+                for (long[] counters : current.values()) {
+                    done += counters[0];
+                    total = total < 0 || counters[1] < 0 ? -1 : total + counters[1];
+                }
+            }
+            boolean transferring = current != null && !current.isEmpty();
+            if (!transferring) {
+                total = -1;
+            }
+            boolean rateChanged = sampleRate(now, done, transferring);
+            if (!dirty && !rateChanged) {
+                return;
+            }
+            dirty = false;
+            long rate = (long) bytesPerSecond;
+            long eta = total >= 0 && rate > 0 ? (total - done) / rate : -1;
+            snapshot = new ProgressSnapshot(phase, done, total, rate, eta, lastLine);
+        }
+        sink.onFrame(snapshot);
+    }
+
+    /** Folds the bytes since the last sample into the smoothed rate. */
+    private boolean sampleRate(long now, long done, boolean transferring) {
+        if (sampleTime == 0) {
+            sampleTime = now;
+            sampleBytes = done;
+            return false;
+        }
+        long elapsed = now - sampleTime;
+        if (elapsed < RATE_SAMPLE_MS) {
+            return false;
+        }
+        double current = Math.max(0, done - sampleBytes) * 1000.0 / elapsed;
+        bytesPerSecond = bytesPerSecond == 0 ? current
+                : RATE_SMOOTHING * current + (1 - RATE_SMOOTHING) * bytesPerSecond;
+        sampleTime = now;
+        sampleBytes = done;
+        return transferring;
+    }
+
+    private void persist() {
+        if (logFile == null) {
+            return;
+        }
+        List<String> snapshot;
+        synchronized (this) {
+            if (!linesDirty) {
+                return;
+            }
+            snapshot = new ArrayList<>(lines);
+            linesDirty = false;
+            lastPersist = System.currentTimeMillis();
+        }
+        File dir = logFile.getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8)) {
+            for (String line : snapshot) {
+                out.write(line);
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            synchronized (this) {
+                linesDirty = true; // Try again on a later tick
+            }
+            return;
+        }
+        if (!tmp.renameTo(logFile)) {
+            tmp.delete();
+        }
+    }
+}
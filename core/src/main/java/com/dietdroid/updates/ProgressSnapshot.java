@@ -0,0 +1,26 @@
+package com.dietdroid.updates;
+
+/** One frame of update progress, cheap to render; see {@link ProgressChannel}. */
+public class ProgressSnapshot {
+    /** What is happening, e.g. "Downloading v1.2" or "Executing update script". */
+    public final String phase;
+    public final long bytesDone;
+    /** -1 while any transfer's size is unknown. */
+    public final long bytesTotal;
+    /** Smoothed transfer rate, 0 when nothing is transferring. */
+    public final long bytesPerSecond;
+    /** Seconds until the transfers finish, or -1 if unknown. */
+    public final long etaSeconds;
+    /** Latest line of script output, or null. */
+    public final String lastLine;
+
+    public ProgressSnapshot(String phase, long bytesDone, long bytesTotal, long bytesPerSecond, long etaSeconds,
+                            String lastLine) {
+        this.phase = phase;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaSeconds = etaSeconds;
+        this.lastLine = lastLine;
+    }
+}
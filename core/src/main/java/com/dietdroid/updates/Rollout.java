@@ -0,0 +1,71 @@
+package com.dietdroid.updates;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decides which staged versions one device is offered, and when it should
+ * start fetching them. The device's install ID and the version hash into
+ * one of 10,000 buckets, so a version at 5% reaches the same 5% of devices
+ * on every check and raising the percentage only ever adds devices. The
+ * version is part of the hash so the same devices are not first in line
+ * for every release.
+ */
+public final class Rollout {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUCKETS = 10000;
+
+    /** Offers every listed version at once; for tools, and for plans that were filtered already. */
+    public static final Rollout EVERYONE = new Rollout(null, 0);
+
+    private final String installId;
+    private final long nowMs;
+
+    /**
+     * @param installId random and stable for the life of the install
+     * @param nowMs the time to compare rollout starts against
+     */
+    public Rollout(String installId, long nowMs) {
+        this.installId = installId;
+        this.nowMs = nowMs;
+    }
+
+    /** True if {@code entry}'s rollout has started and reached this device's bucket. */
+    public boolean includes(UpdateEntry entry) {
+        if (installId == null) {
+            return true;
+        }
+        if (entry.rolloutStartMs > nowMs) {
+            return false;
+        }
+        return bucket(entry.version) < entry.rolloutPercent * BUCKETS / 100;
+    }
+
+    /**
+     * This device's place in the manifest's download window: how long after a
+     * version becomes available it should wait before fetching it, so the
+     * devices offered a version arrive spread over the window rather than
+     * together.
+     */
+    public long downloadOffsetMs(UpdateManifest manifest, String version) {
+        if (installId == null || manifest.downloadWindowMs <= 0) {
+            return 0;
+        }
+        return (long) (fraction("window", version) * manifest.downloadWindowMs);
+    }
+
+    /** 0 to 9,999. */
+    int bucket(String version) {
+        return (int) (fraction("rollout", version) * BUCKETS);
+    }
+
+    /** Uniform in [0, 1), fixed for this install, {@code purpose} and {@code version}. */
+    private double fraction(String purpose, String version) {
+        byte[] hash = Digests.sha256().digest((installId + '\n' + purpose + '\n' + version).getBytes(UTF_8));
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (hash[i] & 0xff);
+        }
+        // The top 53 bits fill a double's mantissa exactly
+        return (bits >>> 11) / (double) (1L << 53);
+    }
+}
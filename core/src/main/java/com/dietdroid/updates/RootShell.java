@@ -0,0 +1,375 @@
+package com.dietdroid.updates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived {@code su} session. Spawning {@code su} costs hundreds of
+ * milliseconds of root-manager IPC (and sometimes a prompt), so every root
+ * operation is written to one shell's stdin instead. Each command is framed
+ * by an end marker carrying its exit code on stdout and a matching marker on
+ * stderr, which lets both streams be attributed to the right command.
+ *
+ * Both streams are drained at the same time by their own reader threads, so
+ * a command filling one pipe never blocks on the other. Readers work on raw
+ * bytes and only decode a line to a String when a listener wants it.
+ *
+ * A command that exceeds its timeout kills the shell; the next command
+ * transparently spawns a new one.
+ */
+public class RootShell {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final long DEFAULT_TIMEOUT_MS = 30 * 1000;
+    // Output a listener already saw is only kept for error messages
+    private static final int LISTENED_TAIL_BYTES = 16 * 1024;
+
+    private static RootShell instance;
+
+    public interface LineListener {
+        /**
+         * Called on a reader thread for each line of stdout or stderr while the
+         * command runs; the two streams may call concurrently.
+         */
+        void onLine(String line);
+    }
+
+    /**
+     * A finished command. When it ran with a {@link LineListener}, stdout and
+     * stderr hold only about the last 16 KB of each, whole lines only; the
+     * listener has had all of it.
+     */
+    public static class Result {
+        public final int exitCode;
+        public final String stdout;
+        public final String stderr;
+
+        Result(int exitCode, String stdout, String stderr) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    private static class Pending {
+        final LineListener listener;
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        final CountDownLatch done = new CountDownLatch(2);
+        volatile int exitCode = -1;
+
+        Pending(LineListener listener) {
+            this.listener = listener;
+        }
+
+        Result toResult() {
+            return new Result(exitCode, decode(stdout), decode(stderr));
+        }
+    }
+
+    private final String marker = "__ROOTSHELL_" + UUID.randomUUID().toString().replace("-", "") + "__";
+    private final byte[] markerBytes = marker.getBytes(UTF_8);
+    private final String[] shellCommand;
+    private volatile Process process;
+    private OutputStream stdin;
+    private BlockingQueue<Pending> stdoutQueue;
+    private BlockingQueue<Pending> stderrQueue;
+    private volatile boolean alive;
+    // Bumped on every spawn so readers of a dead shell cannot mark a new one dead
+    private volatile int generation;
+
+    RootShell(String... shellCommand) {
+        this.shellCommand = shellCommand;
+    }
+
+    public static synchronized RootShell get() {
+        if (instance == null) {
+            instance = new RootShell("su");
+        }
+        return instance;
+    }
+
+    /** True if a root shell can be opened and really runs as uid 0. */
+    public boolean isRootAvailable() {
+        try {
+            Result result = run("id -u", DEFAULT_TIMEOUT_MS);
+            return result.isSuccess() && result.stdout.trim().equals("0");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public Result run(String command, long timeoutMs) throws IOException {
+        return run(command, null, timeoutMs);
+    }
+
+    public synchronized Result run(String command, LineListener listener, long timeoutMs) throws IOException {
+        Pending pending = new Pending(listener);
+        submit(Collections.singletonList(command), Collections.singletonList(pending));
+        await(pending, timeoutMs);
+        return pending.toResult();
+    }
+
+    /**
+     * Runs several commands in one round trip to the shell. Every command
+     * runs even if an earlier one fails; check each result.
+     *
+     * @param timeoutMs budget for the whole batch
+     */
+    public synchronized List<Result> runBatch(List<String> commands, long timeoutMs) throws IOException {
+        List<Pending> pendings = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            pendings.add(new Pending(null));
+        }
+        submit(commands, pendings);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<Result> results = new ArrayList<>();
+        for (Pending pending : pendings) {
+            await(pending, Math.max(0, deadline - System.currentTimeMillis()));
+            results.add(pending.toResult());
+        }
+        return results;
+    }
+
+    public synchronized void close() {
+        kill();
+    }
+
+    /**
+     * Kills the shell from any thread, without waiting for the command in
+     * progress; that command fails and the next one starts a new shell.
+     */
+    public void abort() {
+        Process current = process;
+        if (current != null) {
+            current.destroy();
+        }
+    }
+
+    /** Quotes {@code value} as a single shell word. */
+    public static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private void submit(List<String> commands, List<Pending> pendings) throws IOException {
+        ensureAlive();
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            // Subshell with no stdin, so a command can neither exit nor swallow the session
+            script.append("(\n").append(command).append("\n) </dev/null\n")
+                  .append("echo \"").append(marker).append(" $?\"\n")
+                  .append("echo \"").append(marker).append("\" >&2\n");
+        }
+        for (Pending pending : pendings) {
+            stdoutQueue.add(pending);
+            stderrQueue.add(pending);
+        }
+        try {
+            stdin.write(script.toString().getBytes(UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            kill();
+            throw e;
+        }
+    }
+
+    private void await(Pending pending, long timeoutMs) throws IOException {
+        boolean finished;
+        try {
+            finished = pending.done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            kill();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Root command interrupted");
+        }
+        if (!finished) {
+            // The shell is stuck on this command; start over with a fresh one
+            kill();
+            throw new InterruptedIOException("Root command timed out after " + timeoutMs + " ms");
+        }
+        if (!alive && pending.exitCode == -1) {
+            throw new IOException("Root shell died: " + decode(pending.stderr).trim());
+        }
+    }
+
+    private void ensureAlive() throws IOException {
+        if (alive) {
+            return;
+        }
+        kill();
+        process = new ProcessBuilder(shellCommand).start();
+        stdin = process.getOutputStream();
+        stdoutQueue = new LinkedBlockingQueue<>();
+        stderrQueue = new LinkedBlockingQueue<>();
+        int spawn = ++generation;
+        alive = true;
+        startReader(process.getInputStream(), stdoutQueue, true, spawn, "RootShell-stdout");
+        startReader(process.getErrorStream(), stderrQueue, false, spawn, "RootShell-stderr");
+    }
+
+    private void kill() {
+        alive = false;
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+        failPending(stdoutQueue);
+        failPending(stderrQueue);
+    }
+
+    private static void failPending(BlockingQueue<Pending> queue) {
+        if (queue == null) {
+            return;
+        }
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done.countDown();
+        }
+    }
+
+    private void startReader(InputStream stream, BlockingQueue<Pending> queue, boolean isStdout,
+                             int spawn, String name) {
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            LineBuffer line = new LineBuffer();
+            try (InputStream in = stream) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            line.append(buffer, start, i - start);
+                            onLine(queue, line, isStdout);
+                            line.reset();
+                            start = i + 1;
+                        }
+                    }
+                    line.append(buffer, start, read - start);
+                }
+            } catch (IOException e) {
+                // Stream closed: the shell exited or was killed
+            }
+            if (generation == spawn) {
+                alive = false;
+            }
+            failPending(queue);
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void onLine(BlockingQueue<Pending> queue, LineBuffer line, boolean isStdout) {
+        Pending current = queue.peek();
+        int at = line.indexOf(markerBytes);
+        if (at < 0) {
+            if (current != null) {
+                append(current, line, 0, line.length, isStdout);
+            }
+            return;
+        }
+        if (current == null) {
+            return;
+        }
+        // Output without a trailing newline ends up in front of the marker
+        if (at > 0) {
+            append(current, line, 0, at, isStdout);
+        }
+        if (isStdout) {
+            int codeStart = at + markerBytes.length;
+            current.exitCode = parseExitCode(new String(line.bytes, codeStart, line.length - codeStart, UTF_8));
+        }
+        queue.poll();
+        current.done.countDown();
+    }
+
+    private static void append(Pending pending, LineBuffer line, int offset, int length, boolean isStdout) {
+        ByteArrayOutputStream out = isStdout ? pending.stdout : pending.stderr;
+        synchronized (out) {
+            out.write(line.bytes, offset, length);
+            out.write('\n');
+            // Trimmed only once it has doubled, so the copying stays linear in the output
+            if (pending.listener != null && out.size() > 2 * LISTENED_TAIL_BYTES) {
+                keepTail(out, LISTENED_TAIL_BYTES);
+            }
+        }
+        if (pending.listener != null) {
+            pending.listener.onLine(new String(line.bytes, offset, length, UTF_8));
+        }
+    }
+
+    /** Drops all but the last {@code max} bytes of {@code out}, starting at a line. */
+    private static void keepTail(ByteArrayOutputStream out, int max) {
+        byte[] all = out.toByteArray();
+        int start = all.length - max;
+        while (start < all.length && all[start - 1] != '\n') {
+            start++;
+        }
+        out.reset();
+        out.write(all, start, all.length - start);
+    }
+
+    private static String decode(ByteArrayOutputStream out) {
+        synchronized (out) {
+            try {
+                return out.toString(UTF_8.name());
+            } catch (IOException e) {
+                throw new AssertionError(e); // UTF-8 is always supported
+            }
+        }
+    }
+
+    /** Growable byte array holding the line being read; reused across lines. */
+    private static class LineBuffer {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void append(byte[] source, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        int indexOf(byte[] target) {
+            outer:
+            for (int i = 0; i + target.length <= length; i++) {
+                for (int j = 0; j < target.length; j++) {
+                    if (bytes[i + j] != target[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    private static int parseExitCode(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
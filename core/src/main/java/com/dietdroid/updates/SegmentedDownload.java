@@ -0,0 +1,467 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Fetches the rest of one artifact over several connections at once. A
+ * single TCP stream over a long, lossy path rarely fills the link, so the
+ * remaining bytes are split into ranges that are requested in parallel and
+ * written at their own offsets of the preallocated file.
+ *
+ * It starts with the response the caller already has and adds connections
+ * one at a time, each by splitting the largest unfinished range in two, for
+ * as long as the last one raised the total throughput. A connection whose
+ * range is done takes over half of the largest one left. A failed range is
+ * retried on its own, from where it stopped.
+ *
+ * Only the contiguous prefix is checkpointed to the {@link DownloadState},
+ * so an interrupted download resumes from there on a single connection. The
+ * caller verifies the digest once the whole file is on disk.
+ */
+class SegmentedDownload {
+    // Smaller artifacts finish before extra connections would get going
+    private static final long MIN_ARTIFACT_BYTES = 8L * 1024 * 1024;
+    // Below this, another connection's handshake costs more than it saves
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TICK_MS = 250;
+    // Throughput is compared over windows this long before adding a connection
+    private static final long WINDOW_MS = 1000;
+    // A new connection must raise total throughput by this much to earn another
+    private static final double MIN_GAIN = 1.15;
+    private static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_SEGMENT_ATTEMPTS = 4;
+    private static final long RETRY_BASE_DELAY_MS = 500;
+
+    /** The server answered a range request with the whole file. */
+    static class RangeNotHonouredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotHonouredException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Segment {
+        final long start;
+        // Guarded by the download
+        long position;
+        long end;
+        int failures;
+        long retryAt;
+        boolean running;
+        Call call;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return position >= end;
+        }
+    }
+
+    /** A worker stopped: its range is done, or {@code error} says why not. */
+    private static class Event {
+        final Segment segment;
+        final IOException error;
+
+        Event(Segment segment, IOException error) {
+            this.segment = segment;
+            this.error = error;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    private final FileChannel file;
+    private final DownloadState state;
+    private final File sidecar;
+    private final int maxConnections;
+    private final ExecutorService workers;
+    private final List<Segment> segments = new ArrayList<>();
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private final AtomicLong transferred = new AtomicLong();
+    private volatile boolean cancelled;
+
+    /**
+     * @param client         should speak HTTP/1.1 only, so each range gets
+     *                       its own connection instead of an HTTP/2 stream
+     * @param state          describes the response already open; its
+     *                       {@code bytesWritten} is where that response starts
+     * @param maxConnections upper bound on parallel ranges
+     */
+    SegmentedDownload(OkHttpClient client, String url, FileChannel file, DownloadState state, File sidecar,
+                      int maxConnections) {
+        this.client = client;
+        this.url = url;
+        this.file = file;
+        this.state = state;
+        this.sidecar = sidecar;
+        this.maxConnections = maxConnections;
+        // Its own threads: OkHttp's dispatcher pool is for async calls, and the update
+        // executor's network pool may be running this download's caller
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "Segment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** True if the rest of a response is worth splitting. */
+    static boolean isWorthwhile(Response response, long offset, long total) {
+        boolean ranges = response.code() == 206 || "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+        return ranges && total >= 0 && total - offset >= MIN_ARTIFACT_BYTES;
+    }
+
+    /** Aborts all connections (from any thread); {@link #run} then throws. */
+    void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.call != null) {
+                    segment.call.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads {@code [state.bytesWritten, state.totalBytes)}, the first
+     * connection being {@code first} (whose body starts at that offset).
+     * Returns once every range is on disk, or throws after stopping all
+     * connections; nothing is written to the file after this returns.
+     */
+    long run(Call firstCall, InputStream first, ArtifactDownloader.ProgressListener listener) throws IOException {
+        long offset = state.bytesWritten;
+        long total = state.totalBytes;
+        Segment initial = new Segment(offset, total);
+        synchronized (this) {
+            initial.call = firstCall;
+            initial.running = true;
+            segments.add(initial);
+        }
+        workers.execute(() -> work(initial, first));
+
+        int target = 1;
+        boolean growing = maxConnections > 1;
+        double lastRate = 0;
+        long windowStart = System.nanoTime();
+        long windowBytes = transferred.get();
+        long checkpointed = offset;
+        IOException failure = null;
+        try {
+            while (true) {
+                Event event;
+                try {
+                    event = events.poll(TICK_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+                if (event != null) {
+                    handle(event);
+                }
+                if (cancelled) {
+                    throw new InterruptedIOException("Download cancelled");
+                }
+                if (isComplete()) {
+                    break;
+                }
+
+                long now = System.nanoTime();
+                long elapsedMs = (now - windowStart) / 1000000;
+                if (growing && elapsedMs >= WINDOW_MS) {
+                    long bytes = transferred.get();
+                    double rate = (bytes - windowBytes) * 1000.0 / elapsedMs;
+                    if (lastRate > 0 && rate < lastRate * MIN_GAIN) {
+                        // The last connection did not pay for itself; stay at this many
+                        growing = false;
+                        target = Math.max(1, target - 1);
+                    } else if (target < maxConnections) {
+                        target++;
+                        lastRate = rate;
+                    } else {
+                        growing = false;
+                    }
+                    windowStart = now;
+                    windowBytes = bytes;
+                }
+                startSegments(target, now);
+
+                long prefix = contiguousPrefix();
+                if (prefix - checkpointed >= CHECKPOINT_BYTES) {
+                    checkpoint(prefix);
+                    checkpointed = prefix;
+                }
+                if (listener != null) {
+                    listener.onProgress(offset + transferred.get(), total);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (failure != null) {
+                stopAll();
+                try {
+                    // Everything below the prefix is valid; keep it for the next attempt
+                    checkpoint(contiguousPrefix());
+                } catch (IOException ignored) {
+                    // The original failure is more useful to the caller
+                }
+            }
+            // Every worker has reported by now, so their threads can go
+            workers.shutdown();
+        }
+        if (listener != null) {
+            listener.onProgress(total, total);
+        }
+        state.bytesWritten = total;
+        return total;
+    }
+
+    private void handle(Event event) throws IOException {
+        Segment segment = event.segment;
+        synchronized (this) {
+            segment.running = false;
+            segment.call = null;
+            if (event.error == null || segment.isDone()) {
+                return;
+            }
+        }
+        if (event.error instanceof RangeNotHonouredException || cancelled) {
+            throw event.error;
+        }
+        segment.failures++;
+        if (segment.failures >= MAX_SEGMENT_ATTEMPTS) {
+            throw event.error;
+        }
+        segment.retryAt = System.nanoTime() + (RETRY_BASE_DELAY_MS << (segment.failures - 1)) * 1000000;
+    }
+
+    /** Restarts due retries and fills free connections by splitting the largest range. */
+    private void startSegments(int target, long now) {
+        List<Segment> toStart = new ArrayList<>();
+        synchronized (this) {
+            int running = 0;
+            for (Segment segment : segments) {
+                if (segment.running) {
+                    running++;
+                }
+            }
+            for (Segment segment : segments) {
+                if (!segment.running && !segment.isDone() && now >= segment.retryAt) {
+                    segment.running = true;
+                    toStart.add(segment);
+                    running++;
+                }
+            }
+            while (running < target) {
+                Segment split = split();
+                if (split == null) {
+                    break;
+                }
+                split.running = true;
+                toStart.add(split);
+                running++;
+            }
+        }
+        for (Segment segment : toStart) {
+            workers.execute(() -> work(segment, null));
+        }
+    }
+
+    /** Hands the back half of the largest running range to a new segment, or returns null. */
+    private Segment split() {
+        Segment largest = null;
+        for (Segment segment : segments) {
+            if (segment.running && (largest == null
+                    || segment.end - segment.position > largest.end - largest.position)) {
+                largest = segment;
+            }
+        }
+        if (largest == null || largest.end - largest.position < 2 * MIN_SEGMENT_BYTES) {
+            return null;
+        }
+        // At least MIN_SEGMENT_BYTES ahead, so a read already under way cannot cross it
+        long middle = largest.position + (largest.end - largest.position) / 2;
+        Segment back = new Segment(middle, largest.end);
+        largest.end = middle;
+        segments.add(back);
+        return back;
+    }
+
+    private void work(Segment segment, InputStream body) {
+        IOException error = null;
+        Response response = null;
+        try {
+            if (body == null) {
+                response = request(segment);
+                body = response.body().byteStream();
+            }
+            copy(segment, body);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            events.add(new Event(segment, error));
+        }
+    }
+
+    private Response request(Segment segment) throws IOException {
+        long start;
+        long end;
+        Call call;
+        synchronized (this) {
+            start = segment.position;
+            end = segment.end;
+            Request.Builder builder = new Request.Builder()
+                    .url(url)
+                    .header("Accept-Encoding", "identity")
+                    .header("Range", "bytes=" + start + "-" + (end - 1));
+            String validator = state.ifRangeValidator();
+            if (validator != null) {
+                builder.header("If-Range", validator);
+            }
+            call = client.newCall(builder.build());
+            segment.call = call;
+        }
+        if (cancelled) {
+            call.cancel();
+        }
+        Response response = call.execute();
+        if (response.code() == 206 && ArtifactDownloader.contentRangeStart(response) == start && response.body() != null) {
+            return response;
+        }
+        response.close();
+        if (response.code() == 200) {
+            throw new RangeNotHonouredException("Range request for " + url + " answered with the whole file");
+        }
+        throw new IOException("HTTP " + response.code() + " for range " + start + "-" + (end - 1) + " of " + url);
+    }
+
+    /** Writes the body at the segment's position until the segment (which may shrink) is done. */
+    private void copy(Segment segment, InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            long position;
+            long limit;
+            synchronized (this) {
+                position = segment.position;
+                limit = segment.end - position;
+            }
+            if (limit <= 0) {
+                return;
+            }
+            if (cancelled) {
+                throw new InterruptedIOException("Download cancelled");
+            }
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit));
+            if (read == -1) {
+                throw new IOException("Range of " + url + " ended " + limit + " bytes early");
+            }
+            ByteBuffer source = ByteBuffer.wrap(buffer, 0, read);
+            long at = position;
+            while (source.hasRemaining()) {
+                at += file.write(source, at);
+            }
+            synchronized (this) {
+                segment.position += read;
+            }
+            transferred.addAndGet(read);
+        }
+    }
+
+    private synchronized boolean isComplete() {
+        for (Segment segment : segments) {
+            if (!segment.isDone() || segment.running) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** End of the run of finished bytes that starts at the resume offset. */
+    private synchronized long contiguousPrefix() {
+        List<Segment> ordered = new ArrayList<>(segments);
+        Collections.sort(ordered, (a, b) -> Long.compare(a.start, b.start));
+        long prefix = ordered.get(0).start;
+        for (Segment segment : ordered) {
+            if (segment.start != prefix) {
+                break;
+            }
+            prefix = segment.position;
+            if (!segment.isDone()) {
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    private void checkpoint(long prefix) throws IOException {
+        if (!state.isResumable()) {
+            return; // Not resumable; nothing worth recording
+        }
+        // Data must be durable before the sidecar claims it
+        file.force(false);
+        state.bytesWritten = prefix;
+        state.save(sidecar);
+    }
+
+    /** Cancels every connection and waits until no worker can touch the file. */
+    private void stopAll() {
+        cancel();
+        while (true) {
+            synchronized (this) {
+                boolean running = false;
+                for (Segment segment : segments) {
+                    running |= segment.running;
+                }
+                if (!running) {
+                    return;
+                }
+            }
+            Event event;
+            try {
+                event = events.poll(TICK_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (event != null) {
+                synchronized (this) {
+                    event.segment.running = false;
+                    event.segment.call = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.dietdroid.updates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An APK being written straight into the platform installer (a
+ * PackageInstaller session) while it downloads, so no separate copy of the
+ * bytes is kept on disk. Nothing is installed until {@link #commit()}.
+ */
+public interface StagedApk {
+
+    /** Opens staging sessions; implemented by the platform-specific installer. */
+    interface Stager {
+        /** @param size exact APK size in bytes, required up front by the installer */
+        StagedApk begin(UpdateEntry update, long size) throws IOException;
+    }
+
+    /** Receives the APK bytes in order; closing it flushes them to the session. */
+    OutputStream output() throws IOException;
+
+    /** Installs the staged APK, blocking until the installer reports a result. */
+    void commit() throws Exception;
+
+    /** Drops the staged bytes without installing. */
+    void abandon();
+}
@@ -0,0 +1,34 @@
+package com.dietdroid.updates;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One installable version from system_update.json. Filled in by
+ * {@link ManifestParser}; treat as read-only afterwards.
+ */
+public class UpdateEntry {
+    public String version;
+    /** The update script, or null if this version has none. */
+    public Artifact script;
+    /** The APK, or null if this version has none. */
+    public Artifact apk;
+    /** Package name the APK installs as; needed to find the base for a patch. */
+    public String apkPackage;
+    /**
+     * VCDIFF patches that rebuild {@link #apk}, keyed by the versionName of
+     * the installed APK they apply to.
+     */
+    public final Map<String, Artifact> patches = new HashMap<>();
+    public final List<String> changelog = new ArrayList<>();
+    public String description;
+    public String fileSize;
+    public boolean forced;
+    public boolean automatic;
+    /** Share of devices, 0 to 100, offered this version; see {@link Rollout}. */
+    public double rolloutPercent = 100;
+    /** When the rollout begins, in epoch milliseconds, or 0 if it already has. */
+    public long rolloutStartMs;
+}
@@ -0,0 +1,239 @@
+package com.dietdroid.updates;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs update work off the main thread on two bounded pools: one for network
+ * and disk I/O, one for root and child-process work, so a slow install never
+ * holds up a manifest check and vice versa. Queued work runs by priority,
+ * then in submission order.
+ *
+ * Every job gets a {@link CancellationToken}. Progress, results and errors
+ * are delivered on the callback executor (the main thread in the app) and
+ * are dropped once the job is cancelled or detached, so a destroyed screen
+ * is neither called nor kept alive by the job.
+ */
+public class UpdateExecutor {
+    private static final int NETWORK_THREADS = 3;
+    private static final int PROCESS_THREADS = 1;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static UpdateExecutor instance;
+
+    public enum Pool { NETWORK, PROCESS }
+
+    public enum Priority {
+        /** The user is waiting on the result. */
+        HIGH,
+        NORMAL,
+        /** Background checks and prefetches. */
+        LOW
+    }
+
+    public interface Task<T> {
+        T run(CancellationToken token, Progress progress) throws Exception;
+    }
+
+    public interface Progress {
+        /**
+         * Forwards {@code snapshot} to the job's callback; safe to call from
+         * any thread. Callers are expected to rate-limit (see {@link ProgressChannel}).
+         */
+        void publish(ProgressSnapshot snapshot);
+    }
+
+    public interface Callback<T> {
+        void onProgress(ProgressSnapshot snapshot);
+
+        void onResult(T result);
+
+        void onError(Exception error);
+    }
+
+    private final ThreadPoolExecutor network;
+    private final ThreadPoolExecutor process;
+    private final Executor callbackExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public UpdateExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        this.network = newPool(NETWORK_THREADS, "UpdateNet");
+        this.process = newPool(PROCESS_THREADS, "UpdateProc");
+    }
+
+    /** Process-wide instance; the first caller picks the callback executor. */
+    public static synchronized UpdateExecutor get(Executor callbackExecutor) {
+        if (instance == null) {
+            instance = new UpdateExecutor(callbackExecutor);
+        }
+        return instance;
+    }
+
+    /**
+     * The network pool, for code that fans out its own downloads. Plain
+     * runnables queue at {@link Priority#NORMAL}.
+     */
+    public Executor networkExecutor() {
+        return network;
+    }
+
+    public <T> Job<T> submit(Pool pool, Priority priority, Task<T> task, Callback<T> callback) {
+        Job<T> job = new Job<>(task, callback);
+        (pool == Pool.NETWORK ? network : process).execute(new Ranked(priority, job));
+        return job;
+    }
+
+    /** Handle on a submitted task. */
+    public final class Job<T> implements Runnable {
+        private final CancellationToken token = new CancellationToken();
+        private final Task<T> task;
+        private volatile Callback<T> callback;
+        private Thread runner;
+        // Set on the callback executor when the outcome is delivered, or dropped if nobody listens
+        private boolean finished;
+
+        private Job(Task<T> task, Callback<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        /**
+         * Aborts the job: fires the token's hooks (in-flight calls, child
+         * processes), interrupts its thread and drops any pending callbacks.
+         */
+        public void cancel() {
+            callback = null;
+            token.cancel();
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        /** Stops delivering callbacks but lets the work finish. */
+        public void detach() {
+            callback = null;
+        }
+
+        /**
+         * Delivers the rest of a detached job's callbacks to {@code callback}.
+         * Call on the callback executor, after checking {@link #isFinished}:
+         * the outcome of a job that already finished is not delivered again.
+         */
+        public void attach(Callback<T> callback) {
+            this.callback = callback;
+        }
+
+        /** True once the outcome was delivered or dropped; read on the callback executor. */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean isCancelled() {
+            return token.isCancelled();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (token.isCancelled()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                T result = task.run(token, this::deliverProgress);
+                deliver(() -> {
+                    Callback<T> target = finish();
+                    if (target != null) {
+                        target.onResult(result);
+                    }
+                });
+            } catch (Exception e) {
+                deliver(() -> {
+                    Callback<T> target = finish();
+                    if (target != null) {
+                        target.onError(e);
+                    }
+                });
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // Do not let a late cancel() leak into the pool's next job
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private void deliverProgress(ProgressSnapshot snapshot) {
+            if (callback == null) {
+                return;
+            }
+            deliver(() -> {
+                Callback<T> target = callback;
+                if (target != null && !token.isCancelled()) {
+                    target.onProgress(snapshot);
+                }
+            });
+        }
+
+        /** Takes the callback for the final delivery; null if cancelled or detached. */
+        private Callback<T> finish() {
+            finished = true;
+            Callback<T> target = callback;
+            callback = null;
+            return token.isCancelled() ? null : target;
+        }
+
+        private void deliver(Runnable delivery) {
+            callbackExecutor.execute(delivery);
+        }
+    }
+
+    private final class Ranked implements Runnable {
+        final Priority priority;
+        final long order;
+        final Runnable body;
+
+        Ranked(Priority priority, Runnable body) {
+            this.priority = priority;
+            this.order = sequence.getAndIncrement();
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+    }
+
+    private ThreadPoolExecutor newPool(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>(11, (a, b) -> {
+            Ranked x = (Ranked) a;
+            Ranked y = (Ranked) b;
+            int byPriority = x.priority.compareTo(y.priority);
+            return byPriority != 0 ? byPriority : Long.compare(x.order, y.order);
+        });
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }) {
+            @Override
+            public void execute(Runnable command) {
+                // Work scheduled by other code (e.g. completion services) is not ranked yet
+                super.execute(command instanceof Ranked ? command : new Ranked(Priority.NORMAL, command));
+            }
+        };
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,314 @@
+package com.dietdroid.updates;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Downloads all artifacts of one update at the same time, so the slowest
+ * artifact sets the latency rather than the sum of all of them. If any
+ * artifact fails the others are cancelled and the whole update is rejected;
+ * partial files stay on disk for a resumed attempt.
+ *
+ * With a {@link StagedApk.Stager} the APK is streamed straight into the
+ * platform installer instead of a file. If that fails for any reason the APK
+ * is downloaded to a file as usual and installed from there.
+ *
+ * If the entry lists a patch for the APK version currently installed, only
+ * the patch is downloaded and the new APK is rebuilt from the installed one.
+ * When a chain is prefetched, the previous step is not installed yet, so its
+ * verified APK in the store is tried as the base first. The result must
+ * match the APK's published SHA-256; any failure falls back to the full
+ * download.
+ */
+public class UpdateFetcher {
+
+    public interface Listener {
+        /** Called from download threads; {@code artifact} is "APK" or "script". */
+        void onProgress(UpdateEntry update, String artifact, long bytesDone, long bytesTotal);
+    }
+
+    private final OkHttpClient client;
+    private final ArtifactStore store;
+    private final Executor executor;
+    private final StagedApk.Stager stager;
+    private final InstalledApk.Locator locator;
+    private final MirrorHealth health;
+    private volatile int maxConnections = 1;
+
+    /**
+     * @param executor runs the individual downloads; needs at least two
+     *                 threads for APK and script to overlap
+     * @param stager   streams APKs into the installer, or null to always
+     *                 download them to a file
+     * @param locator  finds the installed APK patches apply to, or null to
+     *                 never use patches
+     */
+    public UpdateFetcher(OkHttpClient client, ArtifactStore store, Executor executor,
+                         StagedApk.Stager stager, InstalledApk.Locator locator) {
+        this(client, store, executor, stager, locator, null);
+    }
+
+    /** @param health mirror scores shared by all downloads, or null to start fresh each time */
+    public UpdateFetcher(OkHttpClient client, ArtifactStore store, Executor executor,
+                         StagedApk.Stager stager, InstalledApk.Locator locator, MirrorHealth health) {
+        this.client = client;
+        this.store = store;
+        this.executor = executor;
+        this.stager = stager;
+        this.locator = locator;
+        this.health = health != null ? health : new MirrorHealth(null);
+    }
+
+    /**
+     * Lets each artifact downloaded to a file use up to {@code maxConnections}
+     * parallel range requests; see {@link ArtifactDownloader#setMaxConnections}.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /** @param token cancelling it aborts every download of this update in flight */
+    public FetchedUpdate fetch(UpdateEntry update, CancellationToken token, Listener listener) throws Exception {
+        return fetch(update, null, token, listener);
+    }
+
+    /**
+     * @param previous the step installed just before {@code update}, or null;
+     *                 its stored APK is the base for a consecutive patch
+     */
+    public FetchedUpdate fetch(UpdateEntry update, UpdateEntry previous, CancellationToken token,
+                               Listener listener) throws Exception {
+        // Content-addressed, so a prefetched step never overwrites one being installed
+        File apkFile = update.apk != null ? store.acquire(update.apk) : null;
+        File scriptFile = update.script != null ? store.acquire(update.script) : null;
+
+        List<ArtifactDownloader> downloaders = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        CompletionService<Object> completion = new ExecutorCompletionService<>(executor);
+        // Holds the staged APK, or stays empty if the APK went to apkFile
+        StagedApk[] staged = new StagedApk[1];
+        if (apkFile != null) {
+            futures.add(completion.submit(fetchApk(update, previous, apkFile, staged, listener, downloaders)));
+        }
+        if (scriptFile != null) {
+            futures.add(completion.submit(download(update, "script", update.script, scriptFile, listener, downloaders)));
+        }
+
+        Runnable abort = token.register(() -> cancelAll(downloaders, futures));
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            // Fail fast: one bad artifact sinks the update, so stop the rest now
+            cancelAll(downloaders, futures);
+            synchronized (staged) {
+                if (staged[0] != null) {
+                    staged[0].abandon();
+                }
+            }
+            if (apkFile != null) {
+                store.release(apkFile);
+            }
+            if (scriptFile != null) {
+                store.release(scriptFile);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            token.unregister(abort);
+        }
+        if (staged[0] != null) {
+            store.release(apkFile);
+            return new FetchedUpdate(update, null, staged[0], scriptFile, store);
+        }
+        return new FetchedUpdate(update, apkFile, null, scriptFile, store);
+    }
+
+    private static void cancelAll(List<ArtifactDownloader> downloaders, List<Future<?>> futures) {
+        for (ArtifactDownloader downloader : downloaders) {
+            downloader.cancel();
+        }
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private Callable<Object> fetchApk(UpdateEntry update, UpdateEntry previous, File apkFile, StagedApk[] staged,
+                                      Listener listener, List<ArtifactDownloader> downloaders) {
+        Callable<Object> full = fetchFullApk(update, apkFile, staged, listener, downloaders);
+        if ((locator == null && previous == null) || update.apkPackage == null || update.apk.sha256 == null
+                || update.patches.isEmpty()) {
+            return full;
+        }
+        ArtifactDownloader downloader = new ArtifactDownloader(client, health);
+        downloaders.add(downloader);
+        return () -> {
+            if (!ArtifactDownloader.isVerified(apkFile, update.apk.sha256, update.apk.size)) {
+                List<File> pinned = new ArrayList<>();
+                try {
+                    for (InstalledApk base : patchBases(update, previous, pinned)) {
+                        Artifact patch = update.patches.get(base.versionName);
+                        if (patch == null) {
+                            continue;
+                        }
+                        try {
+                            applyPatch(update, base, patch, apkFile, downloader, listener);
+                            return null;
+                        } catch (IOException e) {
+                            if (ArtifactDownloader.isInterruption(e)) {
+                                throw e;
+                            }
+                            // Bad patch, changed base or patch not reachable: the full APK still works
+                        }
+                    }
+                } finally {
+                    for (File file : pinned) {
+                        store.release(file);
+                    }
+                }
+            }
+            return full.call();
+        };
+    }
+
+    /**
+     * APKs a patch to {@code update} can start from, best first: the previous
+     * step's verified APK, which a prefetch runs ahead of installing, then
+     * the installed one. Store files used are pinned into {@code pinned}.
+     */
+    private List<InstalledApk> patchBases(UpdateEntry update, UpdateEntry previous, List<File> pinned) {
+        List<InstalledApk> bases = new ArrayList<>();
+        if (previous != null && previous.apk != null && previous.apk.sha256 != null
+                && (previous.apkPackage == null || previous.apkPackage.equals(update.apkPackage))) {
+            File file = store.acquire(previous.apk);
+            pinned.add(file);
+            // Missing if that APK was streamed into the installer instead
+            if (ArtifactDownloader.isVerified(file, previous.apk.sha256, previous.apk.size)) {
+                bases.add(new InstalledApk(previous.version, file));
+            }
+        }
+        InstalledApk installed = locator != null ? locator.find(update.apkPackage) : null;
+        if (installed != null) {
+            bases.add(installed);
+        }
+        return bases;
+    }
+
+    /** Downloads the patch, rebuilds the APK into {@code apkFile} and verifies it. */
+    private static void applyPatch(UpdateEntry update, InstalledApk base, Artifact patch, File apkFile,
+                                   ArtifactDownloader downloader, Listener listener) throws IOException {
+        File patchFile = new File(apkFile.getPath() + ".patch");
+        downloader.download(patch, patchFile, (done, total) -> listener.onProgress(update, "APK", done, total));
+
+        File tmp = new File(apkFile.getPath() + ".tmp");
+        ArtifactDownloader.ensureFreeSpace(tmp, update.apk.size);
+        MessageDigest digest = Digests.sha256();
+        long size;
+        try (RandomAccessFile source = new RandomAccessFile(base.file, "r");
+             InputStream delta = new BufferedInputStream(new FileInputStream(patchFile), 64 * 1024);
+             OutputStream out = new DigestOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024), digest)) {
+            size = VcdiffDecoder.decode(source, delta, out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            // A verified patch that fails to apply will fail again; never keep it
+            ArtifactDownloader.discard(patchFile);
+        }
+
+        String actual = Digests.hex(digest.digest());
+        if ((update.apk.size >= 0 && size != update.apk.size) || !Digests.matches(update.apk.sha256, actual)) {
+            tmp.delete();
+            throw new IOException("Patched APK does not match " + update.apk.sha256 + " (got " + actual + ")");
+        }
+        // Drop any partial full download of the same APK before taking its place
+        ArtifactDownloader.discard(apkFile);
+        if (!tmp.renameTo(apkFile)) {
+            tmp.delete();
+            throw new IOException("Could not store patched APK");
+        }
+        ArtifactDownloader.markVerified(apkFile, update.apk.sha256);
+    }
+
+    private Callable<Object> fetchFullApk(UpdateEntry update, File apkFile, StagedApk[] staged,
+                                          Listener listener, List<ArtifactDownloader> downloaders) {
+        Callable<Object> toFile = download(update, "APK", update.apk, apkFile, listener, downloaders);
+        if (stager == null) {
+            return toFile;
+        }
+        ArtifactDownloader downloader = new ArtifactDownloader(client, health);
+        downloaders.add(downloader);
+        return () -> {
+            if (update.apk.sha256 != null
+                    && ArtifactDownloader.isVerified(apkFile, update.apk.sha256, update.apk.size)) {
+                // Already on disk and verified; installing from the file beats downloading again
+                return toFile.call();
+            }
+            StagedApk[] session = new StagedApk[1];
+            try {
+                downloader.streamTo(update.apk, size -> {
+                    session[0] = stager.begin(update, size);
+                    return session[0].output();
+                }, (done, total) -> listener.onProgress(update, "APK", done, total));
+                synchronized (staged) {
+                    staged[0] = session[0];
+                }
+                return null;
+            } catch (IOException e) {
+                if (session[0] != null) {
+                    session[0].abandon();
+                }
+                if (ArtifactDownloader.isInterruption(e) || e instanceof ArtifactDownloader.IntegrityException) {
+                    throw e;
+                }
+                // Streaming install is an optimisation; the file path is resumable and retried
+                return toFile.call();
+            }
+        };
+    }
+
+    private Callable<Object> download(UpdateEntry update, String label, Artifact artifact, File target,
+                                      Listener listener, List<ArtifactDownloader> downloaders) {
+        // One downloader per artifact: each owns its buffer and can be cancelled on its own
+        ArtifactDownloader downloader = new ArtifactDownloader(client, health);
+        downloader.setMaxConnections(maxConnections);
+        // Scripts are text and shrink; APKs are zip files already
+        downloader.setAcceptGzip(artifact == update.script);
+        downloaders.add(downloader);
+        return () -> downloader.download(artifact, target,
+                (done, total) -> listener.onProgress(update, label, done, total));
+    }
+
+    /** Converts GitHub blob URLs to raw URLs for proper binary download. */
+    static String toRawGitHubUrl(String url) {
+        if (url != null && url.contains("github.com") && url.contains("/blob/")) {
+            return url.replace("github.com", "raw.githubusercontent.com").replace("/blob/", "/");
+        }
+        return url;
+    }
+}
@@ -0,0 +1,48 @@
+package com.dietdroid.updates;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Typed form of system_update.json. Both the current format
+ * ({@code latest_version} plus an {@code updates} map) and the legacy
+ * single-{@code version} format end up here; a legacy manifest is exposed as
+ * a one-entry map so callers need not care which one the server sent.
+ */
+public class UpdateManifest {
+    public final String latestVersion;
+    public final Map<String, UpdateEntry> updates;
+    public final String requiredAndroidVersion;
+    /** Devices spread their downloads of a new version over this long; 0 for no spreading. */
+    public final long downloadWindowMs;
+    /** True if the server still uses the old single-version format. */
+    public final boolean legacy;
+
+    private VersionIndex versionIndex;
+
+    UpdateManifest(String latestVersion, LinkedHashMap<String, UpdateEntry> updates,
+                   String requiredAndroidVersion, long downloadWindowMs, boolean legacy) {
+        this.latestVersion = latestVersion;
+        this.updates = Collections.unmodifiableMap(updates);
+        this.requiredAndroidVersion = requiredAndroidVersion;
+        this.downloadWindowMs = downloadWindowMs;
+        this.legacy = legacy;
+    }
+
+    public UpdateEntry entry(String version) {
+        return version != null ? updates.get(version) : null;
+    }
+
+    public UpdateEntry latestEntry() {
+        return entry(latestVersion);
+    }
+
+    /** Sorted index over {@link #updates}, built on first use. */
+    public synchronized VersionIndex versionIndex() {
+        if (versionIndex == null) {
+            versionIndex = new VersionIndex(this);
+        }
+        return versionIndex;
+    }
+}
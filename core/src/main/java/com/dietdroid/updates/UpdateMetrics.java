@@ -0,0 +1,359 @@
+package com.dietdroid.updates;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timings and counters for the update pipeline: manifest checks, HTTP
+ * phases (see {@link MetricsEventListener}), downloads, installs and
+ * scripts. Each measurement is kept as a sample in a bounded ring, so the
+ * store on disk stays small and always describes the most recent updates;
+ * histograms and percentiles are computed from the ring on export.
+ * Counters are cumulative.
+ *
+ * Recording only touches memory. {@link #flush} writes the store and is
+ * called at the end of each check or update.
+ */
+public class UpdateMetrics {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int MAX_SAMPLES = 2000;
+    // Histogram upper bounds, 1-2-5 steps from 1 to 10^7 (ms, KB/s, ...)
+    private static final long[] BUCKETS = buckets();
+
+    private static UpdateMetrics instance;
+
+    private final File file;
+    // Guarded by this
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+    private final Map<String, Long> counters = new TreeMap<>();
+    private boolean dirty;
+
+    static class Sample {
+        final long time;
+        final String metric;
+        final long value;
+
+        Sample(long time, String metric, long value) {
+            this.time = time;
+            this.metric = metric;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A timed phase. Closing it records {@code <name>_ms} and counts
+     * {@code <name>.ok} or, unless {@link #success} was called, {@code <name>.failed}.
+     */
+    public class Span implements Closeable {
+        private final String name;
+        private final long start = System.nanoTime();
+        private boolean succeeded;
+        private boolean closed;
+
+        private Span(String name) {
+            this.name = name;
+        }
+
+        public void success() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            record(name + "_ms", (System.nanoTime() - start) / 1000000);
+            increment(name + (succeeded ? ".ok" : ".failed"));
+        }
+    }
+
+    public UpdateMetrics(File file) {
+        this.file = file;
+        load();
+    }
+
+    /** Process-wide store in {@code dir/metrics/metrics.json}. */
+    public static synchronized UpdateMetrics get(File dir) {
+        if (instance == null) {
+            instance = new UpdateMetrics(new File(new File(dir, "metrics"), "metrics.json"));
+        }
+        return instance;
+    }
+
+    public Span span(String name) {
+        return new Span(name);
+    }
+
+    public synchronized void record(String metric, long value) {
+        if (samples.size() == MAX_SAMPLES) {
+            samples.removeFirst();
+        }
+        samples.addLast(new Sample(System.currentTimeMillis(), metric, value));
+        dirty = true;
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public synchronized void add(String counter, long delta) {
+        Long value = counters.get(counter);
+        counters.put(counter, value == null ? delta : value + delta);
+        dirty = true;
+    }
+
+    /** Writes the store if anything was recorded since the last flush. */
+    public void flush() {
+        List<Sample> snapshot;
+        Map<String, Long> counterSnapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = new ArrayList<>(samples);
+            counterSnapshot = new TreeMap<>(counters);
+            dirty = false;
+        }
+        File dir = file.getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (JsonWriter out = new JsonWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF_8))) {
+            out.beginObject();
+            writeCounters(out, counterSnapshot);
+            out.name("samples").beginArray();
+            for (Sample sample : snapshot) {
+                // [time, metric, value] keeps the file compact
+                out.beginArray().value(sample.time).value(sample.metric).value(sample.value).endArray();
+            }
+            out.endArray();
+            out.endObject();
+        } catch (IOException e) {
+            tmp.delete();
+            synchronized (this) {
+                dirty = true; // Try again on the next flush
+            }
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Writes counters, per-metric histograms with percentiles, and the raw
+     * samples as JSON.
+     *
+     * @param info extra top-level fields, e.g. device model and app version
+     */
+    public void exportJson(Writer writer, Map<String, String> info) throws IOException {
+        List<Sample> snapshot;
+        Map<String, Long> counterSnapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(samples);
+            counterSnapshot = new TreeMap<>(counters);
+        }
+        JsonWriter out = new JsonWriter(writer);
+        out.setIndent("  ");
+        out.beginObject();
+        out.name("exported_at").value(System.currentTimeMillis());
+        for (Map.Entry<String, String> entry : info.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        writeCounters(out, counterSnapshot);
+        out.name("histograms").beginObject();
+        for (Map.Entry<String, long[]> entry : valuesByMetric(snapshot).entrySet()) {
+            long[] values = entry.getValue();
+            Arrays.sort(values);
+            long sum = 0;
+            for (long value : values) {
+                sum += value;
+            }
+            out.name(entry.getKey()).beginObject();
+            out.name("count").value(values.length);
+            out.name("min").value(values[0]);
+            out.name("max").value(values[values.length - 1]);
+            out.name("mean").value(sum / values.length);
+            out.name("p50").value(percentile(values, 50));
+            out.name("p90").value(percentile(values, 90));
+            out.name("p99").value(percentile(values, 99));
+            out.name("buckets").beginObject();
+            int index = 0;
+            for (long bound : BUCKETS) {
+                int count = 0;
+                while (index < values.length && values[index] <= bound) {
+                    index++;
+                    count++;
+                }
+                if (count > 0) {
+                    out.name("le_" + bound).value(count);
+                }
+            }
+            if (index < values.length) {
+                out.name("inf").value(values.length - index);
+            }
+            out.endObject();
+            out.endObject();
+        }
+        out.endObject();
+        out.name("samples").beginArray();
+        for (Sample sample : snapshot) {
+            out.beginObject();
+            out.name("time").value(sample.time);
+            out.name("metric").value(sample.metric);
+            out.name("value").value(sample.value);
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+        out.flush();
+    }
+
+    /** Writes one row per sample and per counter: {@code kind,time,metric,value}. */
+    public void exportCsv(Writer out) throws IOException {
+        List<Sample> snapshot;
+        Map<String, Long> counterSnapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(samples);
+            counterSnapshot = new TreeMap<>(counters);
+        }
+        out.write("kind,time,metric,value\n");
+        for (Sample sample : snapshot) {
+            out.write("sample," + sample.time + "," + sample.metric + "," + sample.value + "\n");
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : counterSnapshot.entrySet()) {
+            out.write("counter," + now + "," + entry.getKey() + "," + entry.getValue() + "\n");
+        }
+        out.flush();
+    }
+
+    synchronized List<Sample> samples() {
+        return new ArrayList<>(samples);
+    }
+
+    synchronized long counter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    private static void writeCounters(JsonWriter out, Map<String, Long> counters) throws IOException {
+        out.name("counters").beginObject();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    private static Map<String, long[]> valuesByMetric(List<Sample> samples) {
+        Map<String, List<Long>> grouped = new TreeMap<>();
+        for (Sample sample : samples) {
+            List<Long> values = grouped.get(sample.metric);
+            if (values == null) {
+                values = new ArrayList<>();
+                grouped.put(sample.metric, values);
+            }
+            values.add(sample.value);
+        }
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, List<Long>> entry : grouped.entrySet()) {
+            List<Long> values = entry.getValue();
+            long[] array = new long[values.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = values.get(i);
+            }
+            result.put(entry.getKey(), array);
+        }
+        return result;
+    }
+
+    /** Nearest-rank percentile of sorted {@code values}. */
+    static long percentile(long[] values, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * values.length);
+        return values[Math.max(0, Math.min(values.length - 1, rank - 1))];
+    }
+
+    private static long[] buckets() {
+        List<Long> bounds = new ArrayList<>();
+        for (long scale = 1; scale <= 10000000L; scale *= 10) {
+            bounds.add(scale);
+            if (scale < 10000000L) {
+                bounds.add(scale * 2);
+                bounds.add(scale * 5);
+            }
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        List<Sample> loaded = new ArrayList<>();
+        Map<String, Long> loadedCounters = new TreeMap<>();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+             JsonReader in = new JsonReader(reader)) {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("counters")) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        loadedCounters.put(in.nextName(), in.nextLong());
+                    }
+                    in.endObject();
+                } else if (name.equals("samples")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        in.beginArray();
+                        long time = in.nextLong();
+                        String metric = in.nextString();
+                        long value = in.nextLong();
+                        while (in.peek() != JsonToken.END_ARRAY) {
+                            in.skipValue();
+                        }
+                        in.endArray();
+                        loaded.add(new Sample(time, metric, value));
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IOException | RuntimeException e) {
+            return; // A damaged store starts over rather than blocking updates
+        }
+        List<Sample> recent = loaded.size() > MAX_SAMPLES
+                ? loaded.subList(loaded.size() - MAX_SAMPLES, loaded.size()) : loaded;
+        synchronized (this) {
+            samples.addAll(recent);
+            counters.putAll(loadedCounters);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.dietdroid.updates;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Installs a chain of sequential updates in order while downloading ahead:
+ * as soon as step N's artifacts are on disk, step N+1 starts downloading, so
+ * it is usually ready by the time step N has installed and run its script.
+ * Catching up over many versions then takes about as long as the downloads
+ * alone rather than the sum of every download and install.
+ */
+public class UpdatePipeline {
+
+    public interface Fetcher {
+        /**
+         * Downloads every artifact of {@code update}; runs on the pipeline's
+         * download thread, usually while {@code previous} (null for the first
+         * step) is still being installed.
+         */
+        FetchedUpdate fetch(UpdateEntry update, UpdateEntry previous) throws Exception;
+    }
+
+    public interface Installer {
+        /** Installs one fetched update; throws if the step failed. */
+        void install(FetchedUpdate fetched) throws Exception;
+    }
+
+    public interface Listener {
+        void onStepStarted(UpdateEntry update, int index, int count);
+
+        /** Called after each step so progress survives a later failure. */
+        void onStepInstalled(UpdateEntry update, int index, int count);
+    }
+
+    private final Fetcher fetcher;
+    private final Installer installer;
+
+    public UpdatePipeline(Fetcher fetcher, Installer installer) {
+        this.fetcher = fetcher;
+        this.installer = installer;
+    }
+
+    /**
+     * Runs {@code path} in order on the calling thread, stopping at the first
+     * failure. Steps before the failure stay installed.
+     */
+    public void run(List<UpdateEntry> path, Listener listener) throws Exception {
+        if (path.isEmpty()) {
+            return;
+        }
+        // One download thread: artifacts arrive in install order and never compete for bandwidth
+        ExecutorService downloads = Executors.newSingleThreadExecutor();
+        Future<FetchedUpdate> next = null;
+        try {
+            next = submitFetch(downloads, path.get(0), null);
+            int count = path.size();
+            for (int i = 0; i < count; i++) {
+                UpdateEntry update = path.get(i);
+                FetchedUpdate fetched = await(next);
+                next = i + 1 < count ? submitFetch(downloads, path.get(i + 1), update) : null;
+
+                listener.onStepStarted(update, i, count);
+                try {
+                    installer.install(fetched);
+                } catch (Exception e) {
+                    fetched.discard();
+                    throw e;
+                }
+                fetched.release();
+                listener.onStepInstalled(update, i, count);
+            }
+        } finally {
+            // Abandons a prefetch still in flight; resumable downloads keep its partial data
+            downloads.shutdownNow();
+            if (next != null) {
+                discardPrefetched(next);
+            }
+        }
+    }
+
+    private static void discardPrefetched(Future<FetchedUpdate> future) {
+        if (future.cancel(true) || !future.isDone()) {
+            return;
+        }
+        try {
+            // Finished before we could cancel it; release a staged APK session
+            future.get().discard();
+        } catch (Exception e) {
+            // The prefetch failed on its own; nothing to release
+        }
+    }
+
+    private Future<FetchedUpdate> submitFetch(ExecutorService downloads, UpdateEntry update, UpdateEntry previous) {
+        return downloads.submit(() -> fetcher.fetch(update, previous));
+    }
+
+    private static FetchedUpdate await(Future<FetchedUpdate> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
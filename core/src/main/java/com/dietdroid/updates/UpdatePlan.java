@@ -0,0 +1,200 @@
+package com.dietdroid.updates;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The updates a manifest offers one installed version, in install order.
+ * Kept on disk as a small snapshot so the app can show the last known plan
+ * at launch while it revalidates the manifest in the background. The
+ * snapshot holds only the entries on the path, under the manifest's own
+ * field names, and is read back through {@link ManifestParser}.
+ */
+public class UpdatePlan {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The version the plan starts from. */
+    public final String currentVersion;
+    /** ETag of the manifest the plan was resolved from, or null if the server sent none. */
+    public final String manifestEtag;
+    public final List<UpdateEntry> updates;
+
+    private UpdatePlan(String currentVersion, String manifestEtag, List<UpdateEntry> updates) {
+        this.currentVersion = currentVersion;
+        this.manifestEtag = manifestEtag;
+        this.updates = Collections.unmodifiableList(updates);
+    }
+
+    /** @param rollout which staged versions this device is offered yet */
+    public static UpdatePlan resolve(UpdateManifest manifest, String manifestEtag, String currentVersion,
+                                     Rollout rollout) {
+        return new UpdatePlan(currentVersion, manifestEtag, manifest.versionIndex().pathFrom(currentVersion, rollout));
+    }
+
+    public boolean isEmpty() {
+        return updates.isEmpty();
+    }
+
+    /** The last update on the path, or null if there is nothing to install. */
+    public UpdateEntry target() {
+        return updates.isEmpty() ? null : updates.get(updates.size() - 1);
+    }
+
+    /** True if any update on the path is forced. */
+    public boolean isForced() {
+        for (UpdateEntry update : updates) {
+            if (update.forced) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if {@code other} offers the same versions with the same forced
+     * flags and target changelog, i.e. a screen showing one needs no redraw
+     * for the other. Artifacts may still differ.
+     */
+    public boolean looksSameAs(UpdatePlan other) {
+        if (other == null || !currentVersion.equals(other.currentVersion)
+                || updates.size() != other.updates.size() || isForced() != other.isForced()) {
+            return false;
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            if (!updates.get(i).version.equals(other.updates.get(i).version)) {
+                return false;
+            }
+        }
+        return isEmpty() || target().changelog.equals(other.target().changelog);
+    }
+
+    /** Reads a snapshot written by {@link #write}. */
+    public static UpdatePlan read(File file) throws IOException {
+        String currentVersion = null;
+        String manifestEtag = null;
+        UpdateManifest manifest = null;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "current_version":
+                        currentVersion = reader.nextString();
+                        break;
+                    case "manifest_etag":
+                        manifestEtag = reader.nextString();
+                        break;
+                    case "manifest":
+                        manifest = ManifestParser.readManifest(reader, false);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed update plan", e);
+        }
+        if (currentVersion == null || manifest == null) {
+            throw new IOException("Incomplete update plan");
+        }
+        // Only the entries that were offered were written, so none need holding back
+        return resolve(manifest, manifestEtag, currentVersion, Rollout.EVERYONE);
+    }
+
+    /** Replaces {@code file} with a snapshot of this plan. */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+             JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("current_version").value(currentVersion);
+            if (manifestEtag != null) {
+                writer.name("manifest_etag").value(manifestEtag);
+            }
+            // An empty plan targets the current version, so the path read back is empty too
+            UpdateEntry target = target();
+            writer.name("manifest").beginObject();
+            writer.name("latest_version").value(target != null ? target.version : currentVersion);
+            writer.name("updates").beginObject();
+            for (UpdateEntry update : updates) {
+                writer.name(update.version);
+                writeEntry(writer, update);
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.endObject();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not store update plan");
+        }
+    }
+
+    private static void writeEntry(JsonWriter writer, UpdateEntry entry) throws IOException {
+        writer.beginObject();
+        if (entry.apk != null) {
+            writeArtifact(writer, "apk_", entry.apk);
+        }
+        if (entry.script != null) {
+            writeArtifact(writer, "script_", entry.script);
+        }
+        if (entry.apkPackage != null) {
+            writer.name("apk_package").value(entry.apkPackage);
+        }
+        if (!entry.patches.isEmpty()) {
+            writer.name("patches").beginObject();
+            for (Map.Entry<String, Artifact> patch : entry.patches.entrySet()) {
+                writer.name(patch.getKey()).beginObject();
+                writeArtifact(writer, "", patch.getValue());
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+        writer.name("changelog").beginArray();
+        for (String line : entry.changelog) {
+            writer.value(line);
+        }
+        writer.endArray();
+        if (entry.description != null) {
+            writer.name("description").value(entry.description);
+        }
+        if (entry.fileSize != null) {
+            writer.name("file_size").value(entry.fileSize);
+        }
+        writer.name("forced").value(entry.forced);
+        writer.name("automatic").value(entry.automatic);
+        writer.endObject();
+    }
+
+    private static void writeArtifact(JsonWriter writer, String prefix, Artifact artifact) throws IOException {
+        writer.name(prefix + "url").value(artifact.url);
+        if (artifact.sha256 != null) {
+            writer.name(prefix + "sha256").value(artifact.sha256);
+        }
+        if (artifact.size >= 0) {
+            writer.name(prefix + "size").value(artifact.size);
+        }
+        if (!artifact.mirrors.isEmpty()) {
+            writer.name(prefix + "mirrors").beginArray();
+            for (String mirror : artifact.mirrors) {
+                writer.value(mirror);
+            }
+            writer.endArray();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Downloads, verifies and installs a chain of updates: the part of an update
+ * that does not depend on Android. Installing APKs and running scripts is
+ * left to a {@link Platform}, which the app implements with pm and the root
+ * shell and off-device tools can fake.
+ *
+ * The caller owns the store, channel and metrics, and closes, trims or
+ * flushes them when the run is over.
+ */
+public class UpdateRunner {
+
+    public interface Platform {
+        /** Installs an APK that was downloaded to a file rather than staged. */
+        InstallResult installApk(File apkFile) throws Exception;
+
+        /** Runs an update script to completion, passing its output to {@code output}. */
+        RootShell.Result runScript(File scriptFile, RootShell.LineListener output) throws Exception;
+    }
+
+    private final UpdateFetcher fetcher;
+    private final ArtifactStore store;
+    private final Platform platform;
+    private final ProgressChannel channel;
+    private final UpdateMetrics metrics;
+    private volatile int currentIndex;
+
+    public UpdateRunner(UpdateFetcher fetcher, ArtifactStore store, Platform platform,
+                        ProgressChannel channel, UpdateMetrics metrics) {
+        this.fetcher = fetcher;
+        this.store = store;
+        this.platform = platform;
+        this.channel = channel;
+        this.metrics = metrics;
+    }
+
+    /**
+     * The steps of {@code updates} still to install on a device that has
+     * {@code installedVersion}: a plan made before an earlier run installed
+     * some of them must not install them again. Steps and versions that do
+     * not parse are kept, as the manifest's own order decided them.
+     */
+    public static List<UpdateEntry> notInstalled(List<UpdateEntry> updates, String installedVersion) {
+        Version installed = Version.tryParse(installedVersion);
+        if (installed == null) {
+            return updates;
+        }
+        int first = 0;
+        while (first < updates.size()) {
+            Version version = Version.tryParse(updates.get(first).version);
+            if (version == null || version.isNewerThan(installed)) {
+                break;
+            }
+            first++;
+        }
+        return updates.subList(first, updates.size());
+    }
+
+    /**
+     * Installs {@code updates} in order. Throws on the first failed step;
+     * {@code listener} has been told about every step installed before it.
+     */
+    public void run(List<UpdateEntry> updates, CancellationToken token, UpdatePipeline.Listener listener)
+            throws Exception {
+        int count = updates.size();
+        channel.setPhase(updates.get(0).version, stepLabel(updates.get(0), 0, count) + "Downloading update...");
+        UpdatePipeline pipeline = new UpdatePipeline(
+                (update, previous) -> {
+                    try (UpdateMetrics.Span span = metrics.span("download")) {
+                        FetchedUpdate fetched = fetcher.fetch(update, previous, token, this::reportDownload);
+                        span.success();
+                        return fetched;
+                    }
+                },
+                fetched -> {
+                    token.throwIfCancelled();
+                    install(fetched, count);
+                });
+        try (UpdateMetrics.Span span = metrics.span("update")) {
+            pipeline.run(updates, new UpdatePipeline.Listener() {
+                @Override
+                public void onStepStarted(UpdateEntry update, int index, int count) {
+                    currentIndex = index;
+                    channel.setPhase(update.version, stepLabel(update, index, count) + "Installing...");
+                    listener.onStepStarted(update, index, count);
+                }
+
+                @Override
+                public void onStepInstalled(UpdateEntry update, int index, int count) {
+                    listener.onStepInstalled(update, index, count);
+                    if (index + 1 < count) {
+                        UpdateEntry next = updates.get(index + 1);
+                        channel.setPhase(next.version, stepLabel(next, index + 1, count) + "Downloading update...");
+                    }
+                }
+            });
+            span.success();
+        }
+    }
+
+    private void install(FetchedUpdate fetched, int count) throws Exception {
+        String label = stepLabel(fetched.update, currentIndex, count);
+        if (fetched.stagedApk != null) {
+            // Already streamed into an installer session during the download
+            channel.setPhase(fetched.update.version, label + "Installing APK...");
+            try (UpdateMetrics.Span span = metrics.span("install.session")) {
+                fetched.stagedApk.commit();
+                span.success();
+            }
+        } else if (fetched.apkFile != null) {
+            channel.setPhase(fetched.update.version, label + "Installing APK...");
+            InstallResult result = installApk(fetched.apkFile);
+            if (result.status == InstallResult.Status.INSUFFICIENT_STORAGE) {
+                // Cached artifacts of other versions are space we can give back
+                store.trimTo(0);
+                result = installApk(fetched.apkFile);
+            }
+            if (!result.isSuccess()) {
+                throw new InstallResult.InstallException(result);
+            }
+        }
+
+        if (fetched.scriptFile != null) {
+            fetched.scriptFile.setExecutable(true);
+            channel.setPhase(fetched.update.version, label + "Executing update script...");
+            // Lines go to the channel's ring buffer and log file, not one by one to the UI
+            RootShell.Result result;
+            try (UpdateMetrics.Span span = metrics.span("script")) {
+                result = platform.runScript(fetched.scriptFile, channel::appendLine);
+                if (result.isSuccess()) {
+                    span.success();
+                }
+            }
+            if (!result.isSuccess()) {
+                throw new IOException("Update script for v" + fetched.update.version
+                        + " exited with " + result.exitCode + ": " + result.stderr.trim());
+            }
+        }
+    }
+
+    private InstallResult installApk(File apkFile) throws Exception {
+        InstallResult result = platform.installApk(apkFile);
+        metrics.increment("install.result." + result.status.name().toLowerCase());
+        return result;
+    }
+
+    private static String stepLabel(UpdateEntry update, int index, int count) {
+        return count > 1 ? "v" + update.version + " (" + (index + 1) + "/" + count + "): " : "";
+    }
+
+    private void reportDownload(UpdateEntry update, String artifact, long done, long total) {
+        channel.onBytes(update.version, artifact, done, total);
+    }
+}
@@ -0,0 +1,344 @@
+package com.dietdroid.updates;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Adler32;
+
+/**
+ * Streaming decoder for VCDIFF (RFC 3284) deltas as written by
+ * {@code xdelta3 -S none}. The source is read by random access; the delta and
+ * the target are processed strictly front to back one window at a time, so
+ * memory use follows the encoder's window size, not the size of the APK.
+ *
+ * Secondary compression, custom code tables and VCD_TARGET windows are not
+ * supported and fail with an IOException.
+ */
+public final class VcdiffDecoder {
+    private static final int VCD_DECOMPRESS = 0x01;
+    private static final int VCD_CODETABLE = 0x02;
+    private static final int VCD_APPHEADER = 0x04; // xdelta3 extension
+
+    private static final int VCD_SOURCE = 0x01;
+    private static final int VCD_TARGET = 0x02;
+    private static final int VCD_ADLER32 = 0x04; // xdelta3 extension
+
+    private static final int NOOP = 0;
+    private static final int ADD = 1;
+    private static final int RUN = 2;
+    private static final int COPY = 3;
+
+    private static final int NEAR_SIZE = 4;
+    private static final int SAME_SIZE = 3;
+    // A corrupt delta must not make us allocate gigabytes
+    private static final int MAX_WINDOW_BYTES = 64 * 1024 * 1024;
+    private static final int SOURCE_BLOCK = 64 * 1024;
+
+    // Default code table (RFC 3284 section 5.6), two half-instructions per opcode
+    private static final byte[] TYPE1 = new byte[256];
+    private static final byte[] SIZE1 = new byte[256];
+    private static final byte[] MODE1 = new byte[256];
+    private static final byte[] TYPE2 = new byte[256];
+    private static final byte[] SIZE2 = new byte[256];
+    private static final byte[] MODE2 = new byte[256];
+
+    static {
+        int i = 0;
+        TYPE1[i++] = RUN;
+        for (int size = 0; size <= 17; size++, i++) {
+            TYPE1[i] = ADD;
+            SIZE1[i] = (byte) size;
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            TYPE1[i] = COPY;
+            MODE1[i++] = (byte) mode;
+            for (int size = 4; size <= 18; size++, i++) {
+                TYPE1[i] = COPY;
+                SIZE1[i] = (byte) size;
+                MODE1[i] = (byte) mode;
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            int maxCopy = mode <= 5 ? 6 : 4;
+            for (int add = 1; add <= 4; add++) {
+                for (int copy = 4; copy <= maxCopy; copy++, i++) {
+                    TYPE1[i] = ADD;
+                    SIZE1[i] = (byte) add;
+                    TYPE2[i] = COPY;
+                    SIZE2[i] = (byte) copy;
+                    MODE2[i] = (byte) mode;
+                }
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++, i++) {
+            TYPE1[i] = COPY;
+            SIZE1[i] = 4;
+            MODE1[i] = (byte) mode;
+            TYPE2[i] = ADD;
+            SIZE2[i] = 1;
+        }
+    }
+
+    private final RandomAccessFile source;
+    private final InputStream delta;
+    private final OutputStream target;
+    private final long sourceLength;
+
+    // Read-through cache for small COPYs from the source
+    private final byte[] sourceBlock = new byte[SOURCE_BLOCK];
+    private long sourceBlockStart = -1;
+    private int sourceBlockLength;
+
+    private final long[] near = new long[NEAR_SIZE];
+    private final long[] same = new long[SAME_SIZE * 256];
+    private int nextNear;
+
+    private byte[] addresses;
+    private int addressPos;
+
+    private VcdiffDecoder(RandomAccessFile source, InputStream delta, OutputStream target) throws IOException {
+        this.source = source;
+        this.delta = delta;
+        this.target = target;
+        this.sourceLength = source.length();
+    }
+
+    /**
+     * Applies {@code delta} to {@code source}, writing the reconstructed file
+     * to {@code target}.
+     *
+     * @return the number of bytes written
+     */
+    public static long decode(RandomAccessFile source, InputStream delta, OutputStream target) throws IOException {
+        return new VcdiffDecoder(source, delta, target).run();
+    }
+
+    private long run() throws IOException {
+        if (readByte() != 0xD6 || readByte() != 0xC3 || readByte() != 0xC4 || readByte() != 0x00) {
+            throw new IOException("Not a VCDIFF delta");
+        }
+        int header = readByte();
+        if ((header & (VCD_DECOMPRESS | VCD_CODETABLE)) != 0) {
+            throw new IOException("Unsupported VCDIFF features (header " + header + ")");
+        }
+        if ((header & VCD_APPHEADER) != 0) {
+            skip(readInt());
+        }
+
+        long written = 0;
+        int indicator;
+        while ((indicator = delta.read()) != -1) {
+            written += decodeWindow(indicator);
+        }
+        return written;
+    }
+
+    private int decodeWindow(int indicator) throws IOException {
+        if ((indicator & VCD_TARGET) != 0) {
+            throw new IOException("VCD_TARGET windows are not supported");
+        }
+        long segmentLength = 0;
+        long segmentStart = 0;
+        if ((indicator & VCD_SOURCE) != 0) {
+            segmentLength = readInt();
+            segmentStart = readLong();
+            check(segmentStart + segmentLength <= sourceLength, "Source segment beyond the base APK");
+        }
+        readInt(); // Length of the delta encoding; the three sections tell us the same
+        int targetLength = readInt();
+        check(targetLength <= MAX_WINDOW_BYTES, "Target window too large");
+        if (readByte() != 0) {
+            throw new IOException("Secondary compression is not supported");
+        }
+        int dataLength = readInt();
+        int instLength = readInt();
+        int addrLength = readInt();
+        check(dataLength <= MAX_WINDOW_BYTES && instLength <= MAX_WINDOW_BYTES
+                && addrLength <= MAX_WINDOW_BYTES, "Delta window too large");
+        long checksum = -1;
+        if ((indicator & VCD_ADLER32) != 0) {
+            checksum = ((long) readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+        byte[] data = readBytes(dataLength);
+        byte[] inst = readBytes(instLength);
+        addresses = readBytes(addrLength);
+        addressPos = 0;
+        resetCache();
+
+        byte[] window = new byte[targetLength];
+        int dataPos = 0;
+        int instPos = 0;
+        int t = 0;
+        int[] cursor = new int[1];
+        while (instPos < instLength) {
+            int code = inst[instPos++] & 0xff;
+            for (int half = 0; half < 2; half++) {
+                int type = half == 0 ? TYPE1[code] : TYPE2[code];
+                if (type == NOOP) {
+                    continue;
+                }
+                int size = half == 0 ? SIZE1[code] : SIZE2[code];
+                int mode = half == 0 ? MODE1[code] : MODE2[code];
+                if (size == 0) {
+                    cursor[0] = instPos;
+                    size = readInt(inst, cursor);
+                    instPos = cursor[0];
+                }
+                check(size <= targetLength - t, "Instruction overruns the target window");
+                switch (type) {
+                    case ADD:
+                        check(size <= dataLength - dataPos, "ADD overruns the data section");
+                        System.arraycopy(data, dataPos, window, t, size);
+                        dataPos += size;
+                        break;
+                    case RUN:
+                        check(dataPos < dataLength, "RUN overruns the data section");
+                        byte value = data[dataPos++];
+                        for (int k = 0; k < size; k++) {
+                            window[t + k] = value;
+                        }
+                        break;
+                    default:
+                        long here = segmentLength + t;
+                        long address = decodeAddress(mode, here);
+                        check(address >= 0 && address < here, "COPY address out of range");
+                        copy(window, t, size, address, segmentStart, segmentLength);
+                        break;
+                }
+                t += size;
+            }
+        }
+        check(t == targetLength, "Target window is short");
+
+        if (checksum >= 0) {
+            Adler32 adler = new Adler32();
+            adler.update(window, 0, targetLength);
+            check(adler.getValue() == checksum, "Window checksum mismatch");
+        }
+        target.write(window, 0, targetLength);
+        return targetLength;
+    }
+
+    private void copy(byte[] window, int t, int size, long address, long segmentStart, long segmentLength)
+            throws IOException {
+        int k = 0;
+        if (address < segmentLength) {
+            int fromSource = (int) Math.min(size, segmentLength - address);
+            readSource(segmentStart + address, window, t, fromSource);
+            k = fromSource;
+        }
+        // Target copies may overlap the bytes being produced, so go byte by byte
+        for (; k < size; k++) {
+            window[t + k] = window[(int) (address + k - segmentLength)];
+        }
+    }
+
+    private void readSource(long position, byte[] dest, int offset, int length) throws IOException {
+        if (length > SOURCE_BLOCK) {
+            source.seek(position);
+            source.readFully(dest, offset, length);
+            return;
+        }
+        if (position < sourceBlockStart || position + length > sourceBlockStart + sourceBlockLength) {
+            source.seek(position);
+            sourceBlockLength = (int) Math.min(SOURCE_BLOCK, sourceLength - position);
+            source.readFully(sourceBlock, 0, sourceBlockLength);
+            sourceBlockStart = position;
+        }
+        System.arraycopy(sourceBlock, (int) (position - sourceBlockStart), dest, offset, length);
+    }
+
+    private void resetCache() {
+        nextNear = 0;
+        for (int i = 0; i < near.length; i++) {
+            near[i] = 0;
+        }
+        for (int i = 0; i < same.length; i++) {
+            same[i] = 0;
+        }
+    }
+
+    private long decodeAddress(int mode, long here) throws IOException {
+        long address;
+        int[] cursor = {addressPos};
+        if (mode == 0) {
+            address = readInt(addresses, cursor);
+        } else if (mode == 1) {
+            address = here - readInt(addresses, cursor);
+        } else if (mode < 2 + NEAR_SIZE) {
+            address = near[mode - 2] + readInt(addresses, cursor);
+        } else {
+            check(cursor[0] < addresses.length, "Address section is short");
+            address = same[(mode - 2 - NEAR_SIZE) * 256 + (addresses[cursor[0]++] & 0xff)];
+        }
+        addressPos = cursor[0];
+        near[nextNear] = address;
+        nextNear = (nextNear + 1) % NEAR_SIZE;
+        same[(int) (address % same.length)] = address;
+        return address;
+    }
+
+    private static int readInt(byte[] bytes, int[] cursor) throws IOException {
+        long value = 0;
+        while (true) {
+            check(cursor[0] < bytes.length, "Truncated integer");
+            int b = bytes[cursor[0]++] & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            check(value <= Integer.MAX_VALUE, "Integer overflow");
+            if ((b & 0x80) == 0) {
+                return (int) value;
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        long value = readLong();
+        check(value <= Integer.MAX_VALUE, "Integer overflow");
+        return (int) value;
+    }
+
+    private long readLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            int b = readByte();
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Integer overflow");
+    }
+
+    private int readByte() throws IOException {
+        int b = delta.read();
+        if (b == -1) {
+            throw new EOFException("Truncated delta");
+        }
+        return b;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length) {
+            int read = delta.read(bytes, done, length - done);
+            if (read == -1) {
+                throw new EOFException("Truncated delta");
+            }
+            done += read;
+        }
+        return bytes;
+    }
+
+    private void skip(int length) throws IOException {
+        readBytes(length);
+    }
+
+    private static void check(boolean condition, String message) throws IOException {
+        if (!condition) {
+            throw new IOException("Corrupt delta: " + message);
+        }
+    }
+}
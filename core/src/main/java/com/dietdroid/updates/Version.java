@@ -0,0 +1,132 @@
+package com.dietdroid.updates;
+
+import java.util.Arrays;
+
+/**
+ * Dotted version number such as "1.9", "1.10" or "2.0.1-beta", parsed once and
+ * compared component by component ("1.10" is newer than "1.9", unlike the
+ * old {@code Double.parseDouble} ordering). Missing components count as zero,
+ * and a pre-release suffix sorts before the plain release.
+ */
+public final class Version implements Comparable<Version> {
+    private final String text;
+    private final int[] parts;
+    private final String qualifier;
+
+    private Version(String text, int[] parts, String qualifier) {
+        this.text = text;
+        this.parts = parts;
+        this.qualifier = qualifier;
+    }
+
+    /** @throws IllegalArgumentException if {@code text} is not a version number */
+    public static Version parse(String text) {
+        Version version = tryParse(text);
+        if (version == null) {
+            throw new IllegalArgumentException("Not a version: " + text);
+        }
+        return version;
+    }
+
+    /** @return the parsed version, or null if {@code text} is not a version number */
+    public static Version tryParse(String text) {
+        if (text == null) {
+            return null;
+        }
+        String s = text.trim();
+        if (s.startsWith("v") || s.startsWith("V")) {
+            s = s.substring(1);
+        }
+        String qualifier = null;
+        int dash = s.indexOf('-');
+        if (dash >= 0) {
+            qualifier = s.substring(dash + 1);
+            s = s.substring(0, dash);
+            if (qualifier.isEmpty()) {
+                return null;
+            }
+        }
+        if (s.isEmpty()) {
+            return null;
+        }
+
+        int count = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '.') {
+                count++;
+            }
+        }
+        int[] parts = new int[count];
+        int part = 0;
+        int value = 0;
+        boolean digits = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (!digits) {
+                    return null;
+                }
+                parts[part++] = value;
+                value = 0;
+                digits = false;
+            } else if (c >= '0' && c <= '9' && value <= (Integer.MAX_VALUE - 9) / 10) {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else {
+                return null;
+            }
+        }
+        if (!digits) {
+            return null;
+        }
+        parts[part] = value;
+
+        // Drop trailing zeros so "1.1" and "1.1.0" compare and hash equal
+        int length = parts.length;
+        while (length > 1 && parts[length - 1] == 0) {
+            length--;
+        }
+        return new Version(text, length == parts.length ? parts : Arrays.copyOf(parts, length), qualifier);
+    }
+
+    @Override
+    public int compareTo(Version other) {
+        int n = Math.max(parts.length, other.parts.length);
+        for (int i = 0; i < n; i++) {
+            int a = i < parts.length ? parts[i] : 0;
+            int b = i < other.parts.length ? other.parts[i] : 0;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        if (qualifier == null) {
+            return other.qualifier == null ? 0 : 1;
+        }
+        return other.qualifier == null ? -1 : qualifier.compareTo(other.qualifier);
+    }
+
+    public boolean isNewerThan(Version other) {
+        return compareTo(other) > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Version)) {
+            return false;
+        }
+        Version other = (Version) o;
+        return Arrays.equals(parts, other.parts)
+                && (qualifier == null ? other.qualifier == null : qualifier.equals(other.qualifier));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(parts) + (qualifier != null ? qualifier.hashCode() : 0);
+    }
+
+    /** The version exactly as written in the manifest or preferences. */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,91 @@
+package com.dietdroid.updates;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Sorted view of a manifest's versions, shared by {@code MainActivity} and
+ * {@code UpdateService} for deciding what to install next. Version strings
+ * are parsed once when the index is built; queries are O(log n).
+ *
+ * Obtain it through {@link UpdateManifest#versionIndex()}, which builds it
+ * once per parsed manifest, i.e. once per manifest ETag.
+ */
+public final class VersionIndex {
+    private final NavigableMap<Version, UpdateEntry> entries;
+    private final Version latest;
+
+    VersionIndex(UpdateManifest manifest) {
+        TreeMap<Version, UpdateEntry> sorted = new TreeMap<>();
+        for (Map.Entry<String, UpdateEntry> e : manifest.updates.entrySet()) {
+            Version version = Version.tryParse(e.getKey());
+            if (version != null) {
+                sorted.put(version, e.getValue());
+            }
+        }
+        this.entries = Collections.unmodifiableNavigableMap(sorted);
+        Version declared = Version.tryParse(manifest.latestVersion);
+        // Entries above latest_version are not released yet
+        this.latest = declared != null ? declared : (sorted.isEmpty() ? null : sorted.lastKey());
+    }
+
+    /** The newest released version, or null if the manifest lists none. */
+    public Version latest() {
+        return latest;
+    }
+
+    /**
+     * The update to install after {@code current}, or null if the device is
+     * up to date or {@code current} is not a valid version.
+     */
+    public UpdateEntry nextAfter(String current) {
+        return nextAfter(current, Rollout.EVERYONE);
+    }
+
+    /** Like {@link #nextAfter(String)}, but null while {@code rollout} holds that update back. */
+    public UpdateEntry nextAfter(String current, Rollout rollout) {
+        Version version = Version.tryParse(current);
+        if (version == null || latest == null) {
+            return null;
+        }
+        Map.Entry<Version, UpdateEntry> next = entries.higherEntry(version);
+        if (next == null || next.getKey().isNewerThan(latest) || !rollout.includes(next.getValue())) {
+            return null;
+        }
+        return next.getValue();
+    }
+
+    /** Every update from just after {@code current} up to and including the latest, in order. */
+    public List<UpdateEntry> pathFrom(String current) {
+        return pathFrom(current, Rollout.EVERYONE);
+    }
+
+    /**
+     * Like {@link #pathFrom(String)}, but ending before the first update
+     * {@code rollout} holds back: updates install in sequence, so nothing
+     * after it is reachable yet either.
+     */
+    public List<UpdateEntry> pathFrom(String current, Rollout rollout) {
+        Version version = Version.tryParse(current);
+        if (version == null || latest == null || !latest.isNewerThan(version)) {
+            return Collections.emptyList();
+        }
+        Collection<UpdateEntry> candidates = entries.subMap(version, false, latest, true).values();
+        if (rollout == Rollout.EVERYONE) {
+            return new ArrayList<>(candidates);
+        }
+        List<UpdateEntry> path = new ArrayList<>();
+        for (UpdateEntry entry : candidates) {
+            if (!rollout.includes(entry)) {
+                break;
+            }
+            path.add(entry);
+        }
+        return path;
+    }
+}
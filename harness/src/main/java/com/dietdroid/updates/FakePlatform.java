@@ -0,0 +1,38 @@
+package com.dietdroid.updates;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stands in for pm and the root shell: "installs" take a fixed time and only
+ * check that the verified file is there, scripts print one line and succeed.
+ */
+class FakePlatform implements UpdateRunner.Platform {
+    private final long installDelayMs;
+    private final long scriptDelayMs;
+    volatile int installs;
+    volatile int scripts;
+
+    FakePlatform(long installDelayMs, long scriptDelayMs) {
+        this.installDelayMs = installDelayMs;
+        this.scriptDelayMs = scriptDelayMs;
+    }
+
+    @Override
+    public InstallResult installApk(File apkFile) throws Exception {
+        if (!apkFile.isFile()) {
+            throw new IOException("No APK at " + apkFile);
+        }
+        Thread.sleep(installDelayMs);
+        installs++;
+        return new InstallResult(InstallResult.Status.SUCCESS, null, null);
+    }
+
+    @Override
+    public RootShell.Result runScript(File scriptFile, RootShell.LineListener output) throws Exception {
+        Thread.sleep(scriptDelayMs);
+        output.onLine("ran " + scriptFile.getName());
+        scripts++;
+        return new RootShell.Result(0, "ran " + scriptFile.getName() + "\n", "");
+    }
+}
@@ -0,0 +1,225 @@
+package com.dietdroid.updates;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Runs the update flow the app runs (check, resolve, download, verify,
+ * install) against {@link MockUpdateServer}, with pm and root faked, and
+ * reports end-to-end latency and throughput per {@link Scenario}. Before
+ * any scenario, {@link VcdiffCheck} checks the patch decoder.
+ *
+ * Usage: {@code LoadHarness [scenario...] [--json file]}; no scenario names
+ * runs them all.
+ */
+public class LoadHarness {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Report {
+        final String scenario;
+        long checkMs;
+        long revalidateMs = -1;
+        long updateMs;
+        long totalMs;
+        long bytes;
+        int versionsInstalled;
+        int requests;
+        long httpFailures;
+        String error;
+
+        Report(String scenario) {
+            this.scenario = scenario;
+        }
+
+        double megabytesPerSecond() {
+            return updateMs > 0 ? bytes / 1048576.0 / (updateMs / 1000.0) : 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<>();
+        File json = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--json") && i + 1 < args.length) {
+                json = new File(args[++i]);
+            } else {
+                names.add(args[i]);
+            }
+        }
+        try {
+            VcdiffCheck.run();
+        } catch (IOException e) {
+            System.out.println("VCDIFF check FAILED: " + e);
+            System.exit(1);
+        }
+        List<Report> reports = new ArrayList<>();
+        for (Scenario scenario : Scenario.defaults()) {
+            if (names.isEmpty() || names.contains(scenario.name)) {
+                Report report = run(scenario);
+                reports.add(report);
+                print(report);
+            }
+        }
+        if (json != null) {
+            writeJson(reports, json);
+        }
+        // OkHttp and the executors keep non-daemon threads alive for a while
+        System.exit(anyFailed(reports) ? 1 : 0);
+    }
+
+    static Report run(Scenario scenario) throws IOException {
+        Report report = new Report(scenario.name);
+        File dir = createTempDir(scenario.name);
+        UpdateMetrics metrics = new UpdateMetrics(new File(dir, "metrics.json"));
+        OkHttpClient client = new OkHttpClient.Builder()
+                .eventListenerFactory(new MetricsEventListener.Factory(metrics))
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build();
+        try (MockUpdateServer server = new MockUpdateServer(scenario)) {
+            server.start();
+            ManifestFetcher manifests = new ManifestFetcher(client, new File(dir, "manifest"));
+            long start = System.nanoTime();
+
+            // Check
+            ManifestFetcher.Result check = manifests.fetch(server.manifestUrl());
+            report.checkMs = millisSince(start);
+            for (int i = 0; i < scenario.revalidations; i++) {
+                long revalidateStart = System.nanoTime();
+                check = manifests.fetch(server.manifestUrl());
+                if (!check.notModified) {
+                    throw new IOException("Expected 304 on revalidation " + (i + 1));
+                }
+                report.revalidateMs = Math.max(report.revalidateMs, millisSince(revalidateStart));
+            }
+
+            // Resolve
+            List<UpdateEntry> path = check.manifest.versionIndex().pathFrom(MockUpdateServer.version(0));
+
+            // Download, verify, install
+            ArtifactStore store = new ArtifactStore(new File(dir, "artifacts"), Long.MAX_VALUE);
+            UpdateExecutor executor = new UpdateExecutor(Runnable::run);
+            InstalledApk.Locator locator = null;
+            if (server.installedApk() != null) {
+                File installed = new File(dir, "installed.apk");
+                try (FileOutputStream out = new FileOutputStream(installed)) {
+                    out.write(server.installedApk());
+                }
+                InstalledApk apk = new InstalledApk(MockUpdateServer.version(0), installed);
+                locator = packageName -> MockUpdateServer.APK_PACKAGE.equals(packageName) ? apk : null;
+            }
+            UpdateFetcher fetcher = new UpdateFetcher(client, store, executor.networkExecutor(), null, locator);
+            fetcher.setMaxConnections(scenario.connections);
+            FakePlatform platform = new FakePlatform(scenario.installDelayMs, scenario.scriptDelayMs);
+            ProgressChannel channel = new ProgressChannel(snapshot -> { }, null);
+            long updateStart = System.nanoTime();
+            try {
+                new UpdateRunner(fetcher, store, platform, channel, metrics).run(path, new CancellationToken(),
+                        new UpdatePipeline.Listener() {
+                            @Override
+                            public void onStepStarted(UpdateEntry update, int index, int count) {
+                            }
+
+                            @Override
+                            public void onStepInstalled(UpdateEntry update, int index, int count) {
+                                report.versionsInstalled = index + 1;
+                            }
+                        });
+            } catch (Exception e) {
+                report.error = e.toString();
+            } finally {
+                channel.close();
+            }
+            report.updateMs = millisSince(updateStart);
+            report.totalMs = millisSince(start);
+            report.bytes = server.payloadBytes();
+            report.requests = server.requestCount();
+            report.httpFailures = metrics.counter("http.failures");
+            if (scenario.patches && report.error == null && server.fullApkRequests() > 0) {
+                report.error = server.fullApkRequests() + " full APK requests despite patches";
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+        return report;
+    }
+
+    private static void print(Report report) {
+        System.out.println(String.format("%-14s check %5d ms  revalidate %5s  update %6d ms  total %6d ms  "
+                        + "%7.1f MB  %6.1f MB/s  %2d installed  %3d requests  %2d http failures%s",
+                report.scenario, report.checkMs,
+                report.revalidateMs >= 0 ? report.revalidateMs + " ms" : "-",
+                report.updateMs, report.totalMs, report.bytes / 1048576.0, report.megabytesPerSecond(),
+                report.versionsInstalled, report.requests, report.httpFailures,
+                report.error != null ? "  FAILED: " + report.error : ""));
+    }
+
+    private static void writeJson(List<Report> reports, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        try (JsonWriter out = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            out.setIndent("  ");
+            out.beginArray();
+            for (Report report : reports) {
+                out.beginObject();
+                out.name("scenario").value(report.scenario);
+                out.name("check_ms").value(report.checkMs);
+                out.name("revalidate_ms").value(report.revalidateMs);
+                out.name("update_ms").value(report.updateMs);
+                out.name("total_ms").value(report.totalMs);
+                out.name("bytes").value(report.bytes);
+                out.name("mb_per_second").value(report.megabytesPerSecond());
+                out.name("versions_installed").value(report.versionsInstalled);
+                out.name("requests").value(report.requests);
+                out.name("http_failures").value(report.httpFailures);
+                if (report.error != null) {
+                    out.name("error").value(report.error);
+                }
+                out.endObject();
+            }
+            out.endArray();
+        }
+    }
+
+    private static boolean anyFailed(List<Report> reports) {
+        for (Report report : reports) {
+            if (report.error != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private static File createTempDir(String name) throws IOException {
+        File dir = File.createTempFile("harness-" + name + "-", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,319 @@
+package com.dietdroid.updates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * Stands in for GitHub: serves a contents-API-shaped manifest, or the raw
+ * file when asked for it (with ETag revalidation), and APK/script payloads
+ * (with Range/If-Range resume). Text is gzipped for clients that accept it.
+ * All of this happens under
+ * a {@link Scenario}'s latency, bandwidth limit and dropped connections.
+ * Mirror servers serve the same payloads and are listed in the manifest.
+ * With {@link Scenario#patches} each release also has a VCDIFF patch from
+ * the one before it.
+ */
+class MockUpdateServer implements AutoCloseable {
+    static final String MANIFEST_PATH = "/repos/example/updates/contents/system_update.json";
+    static final String APK_PACKAGE = "com.example.app";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Throttled bodies are released in slices this often
+    private static final long THROTTLE_PERIOD_MS = 100;
+
+    private final Scenario scenario;
+    private final MockWebServer server = new MockWebServer();
+    private final List<MockWebServer> mirrors = new ArrayList<>();
+    private final Map<String, byte[]> payloads = new LinkedHashMap<>();
+    private final Map<String, Integer> drops = new HashMap<>();
+    private final AtomicInteger fullApkRequests = new AtomicInteger();
+    private byte[] installedApk;
+    private byte[] envelope;
+    private byte[] rawManifest;
+    private String manifestEtag;
+
+    MockUpdateServer(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    void start() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request, true);
+            }
+        });
+        server.start();
+        for (int i = 0; i < scenario.mirrors; i++) {
+            MockWebServer mirror = new MockWebServer();
+            mirror.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return respond(request, false);
+                }
+            });
+            mirror.start();
+            mirrors.add(mirror);
+        }
+        Random random = new Random(scenario.name.hashCode());
+        StringBuilder updates = new StringBuilder();
+        byte[] previousApk = null;
+        if (scenario.patches) {
+            installedApk = new byte[scenario.apkBytes];
+            random.nextBytes(installedApk);
+            previousApk = installedApk;
+        }
+        for (int i = 1; i < scenario.versions; i++) {
+            String version = version(i);
+            byte[] apk;
+            if (previousApk != null) {
+                apk = edit(previousApk, random);
+            } else {
+                apk = new byte[scenario.apkBytes];
+                random.nextBytes(apk);
+            }
+            byte[] script = scriptOf(scenario.scriptBytes, version);
+            String apkPath = "/releases/v" + version + "/app-release.apk";
+            String scriptPath = "/releases/v" + version + "/update.sh";
+            payloads.put(apkPath, apk);
+            payloads.put(scriptPath, script);
+            if (updates.length() > 0) {
+                updates.append(",\n");
+            }
+            updates.append("    \"").append(version).append("\": {")
+                   .append("\"apk_url\": \"").append(server.url(apkPath)).append("\", ")
+                   .append("\"apk_sha256\": \"").append(sha256(apk)).append("\", ")
+                   .append("\"apk_size\": ").append(apk.length).append(", ")
+                   .append("\"apk_mirrors\": ").append(mirrorUrls(apkPath)).append(", ")
+                   .append("\"script_url\": \"").append(server.url(scriptPath)).append("\", ")
+                   .append("\"script_sha256\": \"").append(sha256(script)).append("\", ")
+                   .append("\"script_mirrors\": ").append(mirrorUrls(scriptPath)).append(", ");
+            if (previousApk != null) {
+                byte[] patch = VcdiffEncoder.encode(previousApk, apk);
+                String patchPath = "/releases/v" + version + "/from-" + version(i - 1) + ".vcdiff";
+                payloads.put(patchPath, patch);
+                updates.append("\"apk_package\": \"").append(APK_PACKAGE).append("\", ")
+                       .append("\"patches\": {\"").append(version(i - 1)).append("\": {")
+                       .append("\"url\": \"").append(server.url(patchPath)).append("\", ")
+                       .append("\"sha256\": \"").append(sha256(patch)).append("\", ")
+                       .append("\"size\": ").append(patch.length).append("}}, ");
+                previousApk = apk;
+            }
+            updates.append("\"changelog\": [\"Synthetic release ").append(version).append("\"]}");
+        }
+        String manifest = "{\n  \"latest_version\": \"" + version(scenario.versions - 1) + "\",\n"
+                + "  \"updates\": {\n" + updates + "\n  }\n}\n";
+        byte[] manifestBytes = manifest.getBytes(UTF_8);
+        rawManifest = manifestBytes;
+        manifestEtag = "\"" + sha256(manifestBytes) + "\"";
+        envelope = ("{\"name\": \"system_update.json\", \"encoding\": \"base64\", \"content\": \""
+                // Wrapped every 60 characters like GitHub's, with JSON-escaped line breaks
+                + Base64.getMimeEncoder(60, new byte[] {'\n'}).encodeToString(manifestBytes).replace("\n", "\\n")
+                + "\"}").getBytes(UTF_8);
+    }
+
+    static String version(int i) {
+        return "1.0." + i;
+    }
+
+    /** The APK the device starts with, or null unless the scenario uses patches. */
+    byte[] installedApk() {
+        return installedApk;
+    }
+
+    /** Requests for full APKs, which a device that can patch should not need. */
+    int fullApkRequests() {
+        return fullApkRequests.get();
+    }
+
+    String manifestUrl() {
+        return server.url(MANIFEST_PATH).toString();
+    }
+
+    /** Bytes a device needs to fetch: patches rather than full APKs when there are patches. */
+    long payloadBytes() {
+        long total = 0;
+        for (Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+            if (!scenario.patches || !payload.getKey().endsWith(".apk")) {
+                total += payload.getValue().length;
+            }
+        }
+        return total;
+    }
+
+    int requestCount() {
+        int count = server.getRequestCount();
+        for (MockWebServer mirror : mirrors) {
+            count += mirror.getRequestCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+        for (MockWebServer mirror : mirrors) {
+            mirror.shutdown();
+        }
+    }
+
+    private String mirrorUrls(String path) {
+        StringBuilder urls = new StringBuilder("[");
+        for (MockWebServer mirror : mirrors) {
+            if (urls.length() > 1) {
+                urls.append(", ");
+            }
+            urls.append('"').append(mirror.url(path)).append('"');
+        }
+        return urls.append(']').toString();
+    }
+
+    private MockResponse respond(RecordedRequest request, boolean primary) {
+        String path = request.getPath();
+        MockResponse response;
+        if (MANIFEST_PATH.equals(path)) {
+            String accept = request.getHeader("Accept");
+            boolean raw = accept != null && accept.contains("vnd.github.raw");
+            // Like GitHub, each representation has its own validator
+            String etag = raw ? "\"raw-" + manifestEtag.substring(1) : manifestEtag;
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                response = new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+            } else {
+                response = new MockResponse().setHeader("ETag", etag).setHeader("Content-Type", "application/json");
+                encode(response, request, raw ? rawManifest : envelope);
+            }
+        } else if (payloads.containsKey(path)) {
+            if (path.endsWith(".apk")) {
+                fullApkRequests.incrementAndGet();
+            }
+            response = payload(path, request);
+        } else {
+            response = new MockResponse().setResponseCode(404);
+        }
+        if (scenario.latencyMs > 0) {
+            response.setHeadersDelay(scenario.latencyMs, TimeUnit.MILLISECONDS);
+        }
+        long bytesPerSecond = scenario.bytesPerSecond;
+        if (primary && scenario.primaryBytesPerSecond > 0 && payloads.containsKey(path)) {
+            bytesPerSecond = scenario.primaryBytesPerSecond;
+        }
+        if (bytesPerSecond > 0) {
+            long slice = Math.max(1, bytesPerSecond * THROTTLE_PERIOD_MS / 1000);
+            response.throttleBody(slice, THROTTLE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    private synchronized MockResponse payload(String path, RecordedRequest request) {
+        byte[] data = payloads.get(path);
+        String etag = "\"" + sha256(data) + "\"";
+        long offset = 0;
+        long last = data.length - 1;
+        boolean partial = false;
+        // bytes=N- or bytes=N-M
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (!scenario.ignoreRanges && range != null && range.startsWith("bytes=") && range.indexOf(',') < 0
+                && (ifRange == null || etag.equals(ifRange))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            offset = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                last = Math.min(last, Long.parseLong(bounds[1]));
+            }
+            partial = true;
+        }
+        if (offset >= data.length) {
+            return new MockResponse().setResponseCode(416)
+                    .setHeader("Content-Range", "bytes */" + data.length);
+        }
+        MockResponse response = new MockResponse().setHeader("ETag", etag).setHeader("Accept-Ranges", "bytes");
+        if (!partial && path.endsWith(".sh")) {
+            encode(response, request, data);
+        } else {
+            response.setBody(new Buffer().write(data, (int) offset, (int) (last + 1 - offset)));
+        }
+        if (partial) {
+            response.setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + offset + "-" + last + "/" + data.length);
+        }
+        Integer dropped = drops.get(path);
+        if (dropped == null) {
+            dropped = 0;
+        }
+        if (dropped < scenario.dropsPerArtifact) {
+            drops.put(path, dropped + 1);
+            response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+        }
+        return response;
+    }
+
+    /** Sets {@code data} as the body, gzipped if the client accepts that. */
+    private static void encode(MockResponse response, RecordedRequest request, byte[] data) {
+        String accepted = request.getHeader("Accept-Encoding");
+        if (accepted == null || !accepted.contains("gzip")) {
+            response.setBody(new Buffer().write(data));
+            return;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        response.setHeader("Content-Encoding", "gzip").setBody(new Buffer().write(compressed.toByteArray()));
+    }
+
+    /**
+     * A new release of {@code apk}: a few scattered byte changes, a block
+     * inserted and a block removed, as a rebuild with small code changes
+     * would make.
+     */
+    private static byte[] edit(byte[] apk, Random random) {
+        byte[] changed = apk.clone();
+        for (int i = 0; i < 64; i++) {
+            changed[random.nextInt(changed.length)] = (byte) random.nextInt(256);
+        }
+        byte[] block = new byte[4096];
+        random.nextBytes(block);
+        int removeAt = random.nextInt(changed.length - block.length);
+        int insertAt = random.nextInt(changed.length - block.length);
+        ByteArrayOutputStream removed = new ByteArrayOutputStream(changed.length);
+        removed.write(changed, 0, removeAt);
+        removed.write(changed, removeAt + block.length, changed.length - removeAt - block.length);
+        byte[] shorter = removed.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(changed.length);
+        out.write(shorter, 0, insertAt);
+        out.write(block, 0, block.length);
+        out.write(shorter, insertAt, shorter.length - insertAt);
+        return out.toByteArray();
+    }
+
+    private static byte[] scriptOf(int size, String version) {
+        StringBuilder script = new StringBuilder("#!/system/bin/sh\necho \"Applying " + version + "\"\n");
+        while (script.length() < size) {
+            script.append("# padding to a realistic script size\n");
+        }
+        return script.toString().getBytes(UTF_8);
+    }
+
+    private static String sha256(byte[] data) {
+        return Digests.hex(Digests.sha256().digest(data));
+    }
+}
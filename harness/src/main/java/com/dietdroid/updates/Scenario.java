@@ -0,0 +1,96 @@
+package com.dietdroid.updates;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Network conditions and payload shape for one harness run. */
+class Scenario {
+    final String name;
+    /** Releases in the manifest; the device starts on the first one. */
+    int versions = 3;
+    int apkBytes = 4 * 1024 * 1024;
+    int scriptBytes = 16 * 1024;
+    /** Per-response bandwidth limit, 0 for none. */
+    long bytesPerSecond;
+    /** Delay before each response's headers. */
+    long latencyMs;
+    /** Connections dropped halfway through the body, per artifact, before one succeeds. */
+    int dropsPerArtifact;
+    /** Parallel range requests allowed per artifact. */
+    int connections = 1;
+    /** Extra servers listed as mirrors of every artifact. */
+    int mirrors;
+    /** Bandwidth limit for artifacts from the primary server only, 0 for none. */
+    long primaryBytesPerSecond;
+    /** Extra manifest checks after the first, each answered with 304. */
+    int revalidations;
+    /**
+     * Publish each release as a small edit of the one before, with a VCDIFF
+     * patch from it, and start the device with the first release installed.
+     */
+    boolean patches;
+    /** Advertise {@code Accept-Ranges: bytes} but answer every request with the whole file. */
+    boolean ignoreRanges;
+    long installDelayMs = 200;
+    long scriptDelayMs = 50;
+
+    Scenario(String name) {
+        this.name = name;
+    }
+
+    static List<Scenario> defaults() {
+        List<Scenario> scenarios = new ArrayList<>();
+        scenarios.add(new Scenario("baseline"));
+
+        Scenario latency = new Scenario("high-latency");
+        latency.latencyMs = 300;
+        scenarios.add(latency);
+
+        Scenario slow = new Scenario("slow-link");
+        slow.bytesPerSecond = 2L * 1024 * 1024;
+        scenarios.add(slow);
+
+        Scenario flaky = new Scenario("flaky");
+        flaky.dropsPerArtifact = 1;
+        scenarios.add(flaky);
+
+        Scenario revalidate = new Scenario("revalidate");
+        revalidate.revalidations = 5;
+        scenarios.add(revalidate);
+
+        Scenario catchUp = new Scenario("catch-up");
+        catchUp.versions = 21;
+        catchUp.apkBytes = 1024 * 1024;
+        scenarios.add(catchUp);
+
+        // Each response is capped, as a single TCP stream on a long path is
+        Scenario capped = new Scenario("capped-stream");
+        capped.bytesPerSecond = 1024 * 1024;
+        capped.apkBytes = 16 * 1024 * 1024;
+        capped.versions = 2;
+        capped.connections = 4;
+        scenarios.add(capped);
+
+        Scenario slowPrimary = new Scenario("slow-primary");
+        slowPrimary.mirrors = 1;
+        slowPrimary.primaryBytesPerSecond = 32 * 1024;
+        slowPrimary.apkBytes = 1024 * 1024;
+        scenarios.add(slowPrimary);
+
+        // Every step should arrive as a patch, including those prefetched before the previous install
+        Scenario patchChain = new Scenario("patch-chain");
+        patchChain.versions = 6;
+        patchChain.patches = true;
+        scenarios.add(patchChain);
+
+        // Looks worth splitting, but every range comes back as a 200 with the whole file
+        Scenario noRanges = new Scenario("ranges-ignored");
+        noRanges.bytesPerSecond = 4 * 1024 * 1024;
+        noRanges.apkBytes = 16 * 1024 * 1024;
+        noRanges.versions = 2;
+        noRanges.connections = 4;
+        noRanges.ignoreRanges = true;
+        scenarios.add(noRanges);
+        return scenarios;
+    }
+}
@@ -0,0 +1,78 @@
+package com.dietdroid.updates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Decodes the checked-in delta in {@code vcdiff/} and compares the result
+ * with the expected target byte for byte, then checks that a corrupted copy
+ * is rejected. The delta uses what xdelta3 writes by default apart from
+ * secondary compression: an application header, an Adler-32 per window,
+ * source windows that overlap, and the default code table's combined
+ * instructions and address caches. To regenerate it:
+ * {@code xdelta3 -e -S none -s base.txt target.txt target.vcdiff}
+ */
+final class VcdiffCheck {
+    private static final String DIR = "/vcdiff/";
+
+    private VcdiffCheck() {
+    }
+
+    /** @throws IOException if the decoder gets the fixture wrong */
+    static void run() throws IOException {
+        byte[] base = resource("base.txt");
+        byte[] target = resource("target.txt");
+        byte[] delta = resource("target.vcdiff");
+        File baseFile = File.createTempFile("vcdiff-base-", ".txt");
+        try {
+            try (FileOutputStream out = new FileOutputStream(baseFile)) {
+                out.write(base);
+            }
+            byte[] decoded = decode(baseFile, delta);
+            if (!Arrays.equals(decoded, target)) {
+                throw new IOException("VCDIFF output differs from target.txt (" + decoded.length + " bytes, expected "
+                        + target.length + ")");
+            }
+            // Flip a byte in the last window's data section, past the headers
+            byte[] corrupt = delta.clone();
+            corrupt[corrupt.length - 40] ^= 0x20;
+            try {
+                decode(baseFile, corrupt);
+            } catch (IOException expected) {
+                return;
+            }
+            throw new IOException("VCDIFF decoder accepted a corrupted delta");
+        } finally {
+            baseFile.delete();
+        }
+    }
+
+    private static byte[] decode(File baseFile, byte[] delta) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RandomAccessFile source = new RandomAccessFile(baseFile, "r")) {
+            VcdiffDecoder.decode(source, new ByteArrayInputStream(delta), out);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream in = VcdiffCheck.class.getResourceAsStream(DIR + name)) {
+            if (in == null) {
+                throw new IOException("Missing resource " + DIR + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.dietdroid.updates;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * Just enough of a VCDIFF encoder to publish patches from the mock server:
+ * greedy COPYs from the source found through a table of 16-byte blocks, ADDs
+ * for everything else, laid out the way {@code xdelta3 -S none} writes them
+ * (application header, Adler-32 per window). Only addressing mode VCD_SELF
+ * and explicit sizes are used; {@link VcdiffCheck} covers the rest of the
+ * decoder against a checked-in delta.
+ */
+final class VcdiffEncoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BLOCK = 16;
+    private static final int WINDOW_BYTES = 1024 * 1024;
+    // Default code table: ADD with the size in the instruction stream, COPY likewise in mode 0
+    private static final int ADD_EXPLICIT = 1;
+    private static final int COPY_SELF_EXPLICIT = 19;
+
+    private VcdiffEncoder() {
+    }
+
+    static byte[] encode(byte[] source, byte[] target) {
+        Map<Long, Integer> blocks = new HashMap<>();
+        for (int p = 0; p + BLOCK <= source.length; p += BLOCK) {
+            blocks.put(hash(source, p), p);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xD6);
+        out.write(0xC3);
+        out.write(0xC4);
+        out.write(0x00);
+        out.write(0x04); // VCD_APPHEADER
+        byte[] appHeader = "new.apk//old.apk/".getBytes(UTF_8);
+        writeInt(out, appHeader.length);
+        out.write(appHeader, 0, appHeader.length);
+        for (int start = 0; start < target.length; start += WINDOW_BYTES) {
+            int end = Math.min(target.length, start + WINDOW_BYTES);
+            writeWindow(out, source, target, start, end, blocks);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeWindow(ByteArrayOutputStream out, byte[] source, byte[] target, int start, int end,
+                                    Map<Long, Integer> blocks) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream inst = new ByteArrayOutputStream();
+        ByteArrayOutputStream addr = new ByteArrayOutputStream();
+        int pending = start;
+        int t = start;
+        while (t < end) {
+            Integer match = t + BLOCK <= end ? blocks.get(hash(target, t)) : null;
+            int length = match != null ? matchLength(source, match, target, t, end) : 0;
+            if (length < BLOCK) {
+                t++;
+                continue;
+            }
+            if (pending < t) {
+                inst.write(ADD_EXPLICIT);
+                writeInt(inst, t - pending);
+                data.write(target, pending, t - pending);
+            }
+            inst.write(COPY_SELF_EXPLICIT);
+            writeInt(inst, length);
+            writeInt(addr, match);
+            t += length;
+            pending = t;
+        }
+        if (pending < end) {
+            inst.write(ADD_EXPLICIT);
+            writeInt(inst, end - pending);
+            data.write(target, pending, end - pending);
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(target, start, end - start);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeInt(body, end - start);
+        body.write(0); // No secondary compression
+        writeInt(body, data.size());
+        writeInt(body, inst.size());
+        writeInt(body, addr.size());
+        long checksum = adler.getValue();
+        body.write((int) (checksum >>> 24));
+        body.write((int) (checksum >>> 16));
+        body.write((int) (checksum >>> 8));
+        body.write((int) checksum);
+        body.write(data.toByteArray(), 0, data.size());
+        body.write(inst.toByteArray(), 0, inst.size());
+        body.write(addr.toByteArray(), 0, addr.size());
+
+        out.write(0x01 | 0x04); // VCD_SOURCE | VCD_ADLER32
+        writeInt(out, source.length);
+        writeInt(out, 0);
+        writeInt(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+    }
+
+    private static int matchLength(byte[] source, int s, byte[] target, int t, int end) {
+        int length = 0;
+        while (s + length < source.length && t + length < end && source[s + length] == target[t + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static long hash(byte[] bytes, int offset) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < BLOCK; i++) {
+            h = 31 * h + bytes[offset + i];
+        }
+        return h;
+    }
+
+    /** RFC 3284 integer: base 128, most significant group first. */
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        int groups = 1;
+        while (value >>> (7 * groups) != 0) {
+            groups++;
+        }
+        for (int g = groups - 1; g >= 0; g--) {
+            int b = (int) ((value >>> (7 * g)) & 0x7f);
+            out.write(g > 0 ? b | 0x80 : b);
+        }
+    }
+}